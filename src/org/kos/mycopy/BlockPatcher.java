@@ -0,0 +1,94 @@
+package org.kos.mycopy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Updates an existing destination file in place, rewriting only the blocks which differ from the source.
+ * <p>
+ * Blocks within the old destination length are read from both sides and compared, matching blocks cost two
+ * reads and no writes. Anything beyond the old destination length (append-only growth) is transferred without
+ * reading the destination at all. Destination is cut to the source length when done.
+ */
+public class BlockPatcher {
+    public static final int BLOCK_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer[]> buffers = ThreadLocal.withInitial(() -> new ByteBuffer[]{
+            ByteBuffer.allocateDirect(BLOCK_SIZE), ByteBuffer.allocateDirect(BLOCK_SIZE)});
+
+    private final AtomicLong bytesUnchanged = new AtomicLong();
+    private final AtomicLong bytesRewritten = new AtomicLong();
+
+    public long getBytesUnchanged() {
+        return bytesUnchanged.get();
+    }
+
+    public long getBytesRewritten() {
+        return bytesRewritten.get();
+    }
+
+    /**
+     * Makes {@code count} bytes at {@code position} of {@code out} equal to those of {@code in}.
+     *
+     * @param oldLength destination length before patching started
+     * @return number of bytes processed
+     */
+    public long transfer(FileChannel in, long position, long count, FileChannel out, long oldLength)
+            throws IOException {
+        long done = 0;
+        ByteBuffer[] bufs = buffers.get();
+        ByteBuffer srcBuf = bufs[0];
+        ByteBuffer dstBuf = bufs[1];
+
+        while (done < count && position + done < oldLength) {
+            long pos = position + done;
+            int len = (int) Math.min(BLOCK_SIZE, Math.min(count - done, oldLength - pos));
+            int read = read(in, srcBuf, pos, len);
+            if (read == 0)
+                return done;
+            read(out, dstBuf, pos, read);
+
+            if (srcBuf.equals(dstBuf))
+                bytesUnchanged.addAndGet(read);
+            else {
+                srcBuf.rewind();
+                long p = pos;
+                while (srcBuf.hasRemaining())
+                    p += out.write(srcBuf, p);
+                bytesRewritten.addAndGet(read);
+            }
+            done += read;
+        }
+
+        if (done < count) {
+            // beyond the old end: nothing to compare with
+            out.position(position + done);
+            long appended = in.transferTo(position + done, count - done, out);
+            bytesRewritten.addAndGet(appended);
+            done += appended;
+        }
+        return done;
+    }
+
+    /**
+     * Cuts destination to the source length.
+     */
+    public void finish(FileChannel out, long length) throws IOException {
+        if (out.size() > length)
+            out.truncate(length);
+    }
+
+    private static int read(FileChannel channel, ByteBuffer buf, long position, int length) throws IOException {
+        buf.clear();
+        buf.limit(length);
+        while (buf.hasRemaining()) {
+            int r = channel.read(buf, position + buf.position());
+            if (r <= 0)
+                break;
+        }
+        buf.flip();
+        return buf.limit();
+    }
+}
@@ -0,0 +1,192 @@
+package org.kos.mycopy;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Checksums of consecutive blocks of a file the receiver already has, for {@link DeltaEncoder} to find those blocks
+ * in the new version of the file: a {@link RollingChecksum} to find candidates quickly at any offset, and an MD5
+ * digest to confirm them. The last block may be shorter than the others.
+ */
+public class BlockSignature {
+    public static final int MIN_BLOCK_SIZE = 700;
+    public static final int MAX_BLOCK_SIZE = 128 * 1024;
+    public static final int STRONG_BYTES = 16;
+    // files needing more blocks than that (over 128G) are sent whole, keeps signatures under 20M
+    public static final int MAX_BLOCKS = 1024 * 1024;
+    private static final String STRONG_ALGORITHM = "MD5";
+
+    private final int blockSize;
+    private final long length;
+    private final int[] weak;
+    private final byte[] strong;
+    // weak checksum hash table: head block of each bucket, next block in the same bucket, -1 terminated
+    private int[] heads;
+    private int[] next;
+    private int shift;
+
+    private BlockSignature(int blockSize, long length, int[] weak, byte[] strong) {
+        this.blockSize = blockSize;
+        this.length = length;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * @return block size balancing signature size against match granularity, about square root of the length
+     */
+    public static int blockSize(long length) {
+        int size = (int) Math.min(MAX_BLOCK_SIZE, (long) Math.sqrt(length)) & ~7;
+        return Math.max(MIN_BLOCK_SIZE, size);
+    }
+
+    public static BlockSignature of(File file) throws IOException {
+        long length = file.length();
+        int blockSize = blockSize(length);
+        long blocks = (length + blockSize - 1) / blockSize;
+        if (blocks > MAX_BLOCKS)
+            throw new IOException(file + " is too large for a signature");
+        int[] weak = new int[(int) blocks];
+        byte[] strong = new byte[(int) blocks * STRONG_BYTES];
+        MessageDigest digest = newDigest();
+        byte[] buf = new byte[blockSize];
+        try (InputStream in = new FileInputStream(file)) {
+            for (int i = 0; i < blocks; i++) {
+                int size = (int) Math.min(blockSize, length - (long) i * blockSize);
+                readFully(in, buf, size);
+                weak[i] = RollingChecksum.of(buf, 0, size);
+                digest.update(buf, 0, size);
+                System.arraycopy(digest.digest(), 0, strong, i * STRONG_BYTES, STRONG_BYTES);
+            }
+        }
+        return new BlockSignature(blockSize, length, weak, strong);
+    }
+
+    /**
+     * Reads a signature sent by the other end, not trusting it: sizes out of the limits {@link #of(File)} keeps to
+     * are rejected before anything is allocated.
+     */
+    public static BlockSignature read(DataInputStream in) throws IOException {
+        int blockSize = in.readInt();
+        long length = in.readLong();
+        int blocks = in.readInt();
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || blocks < 0 || blocks > MAX_BLOCKS ||
+                (long) blocks * blockSize < length || length <= (long) (blocks - 1) * blockSize)
+            throw new IOException("Bad signature");
+        int[] weak = new int[blocks];
+        byte[] strong = new byte[blocks * STRONG_BYTES];
+        for (int i = 0; i < blocks; i++) {
+            weak[i] = in.readInt();
+            in.readFully(strong, i * STRONG_BYTES, STRONG_BYTES);
+        }
+        return new BlockSignature(blockSize, length, weak, strong);
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(blockSize);
+        out.writeLong(length);
+        out.writeInt(weak.length);
+        for (int i = 0; i < weak.length; i++) {
+            out.writeInt(weak[i]);
+            out.write(strong, i * STRONG_BYTES, STRONG_BYTES);
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    /**
+     * @return number of bytes in block {@code index}
+     */
+    public int blockLength(int index) {
+        return (int) Math.min(blockSize, length - (long) index * blockSize);
+    }
+
+    /**
+     * Looks for a block equal to {@code buf[offset, offset + length)}.
+     *
+     * @param checksum {@link RollingChecksum} of the bytes
+     * @param preferred block to check first, the one following the previous match usually matches again
+     * @return index of the block, {@code -1} if none is equal
+     */
+    public int find(int checksum, byte[] buf, int offset, int length, int preferred, MessageDigest digest) {
+        if (heads == null)
+            index();
+        byte[] computed = null;
+        if (preferred >= 0 && preferred < weak.length && weak[preferred] == checksum &&
+                blockLength(preferred) == length) {
+            computed = strong(digest, buf, offset, length);
+            if (strongEquals(preferred, computed))
+                return preferred;
+        }
+        for (int i = heads[bucket(checksum)]; i >= 0; i = next[i]) {
+            if (weak[i] != checksum || blockLength(i) != length || i == preferred)
+                continue;
+            if (computed == null)
+                computed = strong(digest, buf, offset, length);
+            if (strongEquals(i, computed))
+                return i;
+        }
+        return -1;
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(STRONG_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JRE has MD5
+        }
+    }
+
+    private void index() {
+        int buckets = Integer.highestOneBit(Math.max(1, weak.length) * 2 - 1) * 2;
+        shift = 32 - Integer.numberOfTrailingZeros(buckets);
+        heads = new int[buckets];
+        next = new int[weak.length];
+        Arrays.fill(heads, -1);
+        // inserted backwards so that buckets list earlier blocks first
+        for (int i = weak.length - 1; i >= 0; i--) {
+            int bucket = bucket(weak[i]);
+            next[i] = heads[bucket];
+            heads[bucket] = i;
+        }
+    }
+
+    private int bucket(int checksum) {
+        return (checksum * 0x9E3779B9) >>> shift;
+    }
+
+    private static byte[] strong(MessageDigest digest, byte[] buf, int offset, int length) {
+        digest.update(buf, offset, length);
+        return digest.digest();
+    }
+
+    private boolean strongEquals(int index, byte[] computed) {
+        for (int i = 0; i < STRONG_BYTES; i++)
+            if (strong[index * STRONG_BYTES + i] != computed[i])
+                return false;
+        return true;
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int size) throws IOException {
+        int read = 0;
+        while (read < size) {
+            int n = in.read(buf, read, size - read);
+            if (n < 0)
+                throw new IOException("File got shorter while computing its signature");
+            read += n;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.kos.mycopy;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks transfer chunk sizes so that a chunk takes about the target time: small enough for prompt interruption and
+ * smooth progress on slow mounts, large enough to amortize per-call overhead on fast devices.
+ * <p>
+ * Every copied file is a {@link Stream} adjusting its chunk size after each full chunk from the observed rate, by at
+ * most 4x per step. New streams start from the size the last adjustment between the same devices settled on.
+ */
+public class ChunkSizer {
+    private static final int MAX_STEP = 4;
+
+    private final long targetNanos;
+    private final long minChunkSize;
+    private final long initialChunkSize;
+    private final long maxChunkSize;
+    // devices, see DeviceScheduler.Ticket#getDevices() -> chunk size last settled on
+    private final ConcurrentMap<String, Long> learned = new ConcurrentHashMap<>();
+
+    private final AtomicLong chunks = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong smallest = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong largest = new AtomicLong();
+
+    /**
+     * @param targetMillis target time of a chunk transfer, {@code 0} to always use {@code initialChunkSize}
+     */
+    public ChunkSizer(long targetMillis, long initialChunkSize, long minChunkSize, long maxChunkSize) {
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.minChunkSize = minChunkSize;
+        this.initialChunkSize = initialChunkSize;
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    /**
+     * @param devices devices the file is copied between, rates learned on others don't apply
+     */
+    public Stream newStream(String devices) {
+        return new Stream(devices, learned.getOrDefault(devices, initialChunkSize));
+    }
+
+    public long getChunks() {
+        return chunks.get();
+    }
+
+    public long getAverageChunkSize() {
+        long n = chunks.get();
+        return n == 0 ? 0 : bytes.get() / n;
+    }
+
+    public long getSmallestChunkSize() {
+        return chunks.get() == 0 ? 0 : smallest.get();
+    }
+
+    public long getLargestChunkSize() {
+        return largest.get();
+    }
+
+    public class Stream {
+        private final String devices;
+        private long chunkSize;
+
+        Stream(String devices, long chunkSize) {
+            this.devices = devices;
+            this.chunkSize = chunkSize;
+        }
+
+        public long next() {
+            return chunkSize;
+        }
+
+        /**
+         * @param transferred bytes transferred, may be less than {@link #next()} at the end of a file
+         * @param nanos       time the transfer took
+         */
+        public void record(long transferred, long nanos) {
+            // statistics of sizes chosen, file tails and rate limits don't count
+            chunks.incrementAndGet();
+            bytes.addAndGet(chunkSize);
+            smallest.accumulateAndGet(chunkSize, Math::min);
+            largest.accumulateAndGet(chunkSize, Math::max);
+
+            // tail of a file, a short read or a rate limited chunk says little about the rate, and a small file
+            // copied from the page cache in no time would blow up the size for the next large one
+            if (targetNanos == 0 || transferred != chunkSize || nanos <= 0)
+                return;
+            long ideal = (long) (transferred * ((double) targetNanos / nanos));
+            ideal = Math.max(chunkSize / MAX_STEP, Math.min(chunkSize * MAX_STEP, ideal));
+            ideal = Math.max(minChunkSize, Math.min(maxChunkSize, ideal));
+            chunkSize = ideal / minChunkSize * minChunkSize;
+            learned.put(devices, chunkSize);
+        }
+    }
+}
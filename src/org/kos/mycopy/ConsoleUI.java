@@ -0,0 +1,448 @@
+package org.kos.mycopy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Command line counterpart of {@link UI}. While copying, reads commands from the standard input to adjust limits.
+ */
+public class ConsoleUI {
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: mycopy [options] <source> <destination> [<destination>...]",
+            "       mycopy [options] --send <source> <host>:<port>",
+            "       mycopy [options] --receive=[ADDRESS:]PORT <destination>",
+            "  Several destinations are written reading the source once, each one checked on its own.",
+            "  --source-itself        copy source directory itself instead of its contents",
+            "  --threads=N            number of checking/copying threads",
+            "  --device-reads=N       files read from one non-rotational device at once (default: threads)",
+            "  --device-writes=N      files written to one non-rotational device at once (default: threads),",
+            "                         a rotational device is always read or written by one file at a time",
+            "  --strategy=S[,S...]    mtime, size, headtail, hash, content or always (default: size)",
+            "  --order=O              as_scanned, inode, directory, largest_first or smallest_first",
+            "  --bwlimit=SIZE         copying bandwidth limit per second, like 500K or 20M",
+            "  --fpslimit=N           limit of files started per second",
+            "  --pressure[=HIGH,LOW]  slow down when I/O or memory pressure (percent) is above HIGH,",
+            "                         speed up again when it drops below LOW (default: 40,10)",
+            "  --resume               keep a journal in the destination to continue an interrupted job",
+            "  --durable              write to temporary files, fsync and rename them over destinations",
+            "  --preallocate=SIZE     reserve space for files of this size or larger, e.g. 64M (default: off)",
+            "  --sparse               don't write all-zero blocks, leave holes in destination files",
+            "  --hard-links           copy hard linked files once and link them on the destination too",
+            "  --dedup[=MINSIZE]      copy identical files once and hard link the rest (default MINSIZE: 4K)",
+            "  --in-place             rewrite only changed blocks of existing destination files",
+            "  --summaries            skip source directories unchanged since the last successful copy",
+            "  --include=PATTERN      include matching files, rules are applied in order, first match wins",
+            "  --exclude=PATTERN      exclude matching files and directories, e.g. node_modules/ or *.tmp",
+            "  --rules=FILE           read '+ PATTERN' / '- PATTERN' rules from a file, one per line",
+            "  --spill=COUNT[,DIR]    keep at most COUNT scanned files in memory, spill the rest to DIR",
+            "                         (default: 4000000, java.io.tmpdir)",
+            "  --prefetch[=DEPTH]     open and read ahead up to DEPTH upcoming files (default DEPTH: 32)",
+            "  --chunk-latency=MS     adapt transfer chunk size so a chunk takes about MS milliseconds,",
+            "                         0 for fixed 16M chunks (default: 75)",
+            "  --drop-cache           drop copied files (1M and larger) from the page cache",
+            "  --send                 push files to a receiver, which checks them with its own strategy",
+            "  --compress             deflate data sent to a receiver",
+            "  --delta                send changed files as differences from the receiver's old versions",
+            "  --receive=[ADDRESS:]PORT",
+            "                         receive files pushed by senders, strategy may be mtime, size or always;",
+            "                         listens on loopback unless ADDRESS is given, e.g. 0.0.0.0 for all",
+            "                         interfaces. Senders aren't authenticated: anyone who can reach the port",
+            "                         can create or replace any file under the destination",
+            "While copying type 'bwlimit SIZE', 'fpslimit N' or 'stop'.");
+
+    private File source;
+    private File destination;
+    private boolean copySourceItself;
+    private boolean send;
+    private InetAddress receiveAddress = InetAddress.getLoopbackAddress();
+    private int receivePort = -1;
+    private int threads = Math.min(2, Runtime.getRuntime().availableProcessors());
+    private final List<CopyStrategy> strategies = new ArrayList<>();
+    private final CopyOptions options = new CopyOptions();
+
+    private CopyEngine copyEngine;
+
+    public static void main(String[] args) {
+        ConsoleUI ui = new ConsoleUI();
+        try {
+            ui.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        ui.run();
+    }
+
+    private void parseArgs(String[] args) {
+        List<String> positional = new ArrayList<>(2);
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+                continue;
+            }
+
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+            String value = eq < 0 ? null : arg.substring(eq + 1);
+            switch (name) {
+                case "source-itself":
+                    copySourceItself = true;
+                    break;
+                case "threads":
+                    threads = Integer.parseInt(required(name, value));
+                    break;
+                case "device-reads":
+                    options.setDeviceReadLimit(positive(name, required(name, value)));
+                    break;
+                case "device-writes":
+                    options.setDeviceWriteLimit(positive(name, required(name, value)));
+                    break;
+                case "strategy":
+                    for (String s : required(name, value).split(","))
+                        strategies.add(strategy(s));
+                    break;
+                case "order":
+                    options.setCopyOrder(CopyOrder.valueOf(required(name, value).toUpperCase(Locale.ROOT)));
+                    break;
+                case "bwlimit":
+                    options.setBytesPerSecondLimit(Utils.humanReadableToBytes(required(name, value)));
+                    break;
+                case "fpslimit":
+                    options.setFilesPerSecondLimit(Long.parseLong(required(name, value)));
+                    break;
+                case "pressure":
+                    options.setPressureThrottling(true);
+                    if (value != null) {
+                        String[] thresholds = value.split(",");
+                        if (thresholds.length != 2)
+                            throw new IllegalArgumentException("--pressure expects HIGH,LOW");
+                        double high = Double.parseDouble(thresholds[0]);
+                        double low = Double.parseDouble(thresholds[1]);
+                        // also false for NaN
+                        if (!(0 <= low && low < high && high <= 100))
+                            throw new IllegalArgumentException("--pressure expects 0 <= LOW < HIGH <= 100");
+                        options.setPressureHighThreshold(high);
+                        options.setPressureLowThreshold(low);
+                    }
+                    break;
+                case "resume":
+                    options.setResumable(true);
+                    break;
+                case "durable":
+                    options.setDurable(true);
+                    break;
+                case "preallocate":
+                    options.setPreallocateThreshold(Utils.humanReadableToBytes(required(name, value)));
+                    break;
+                case "sparse":
+                    options.setSparse(true);
+                    break;
+                case "hard-links":
+                    options.setHardLinks(true);
+                    break;
+                case "dedup":
+                    options.setDeduplicate(true);
+                    if (value != null)
+                        options.setDeduplicateMinSize(Utils.humanReadableToBytes(value));
+                    break;
+                case "in-place":
+                    options.setInPlace(true);
+                    break;
+                case "summaries":
+                    options.setDirectorySummaries(true);
+                    break;
+                case "include":
+                    options.getFilterRules().add("+ " + required(name, value));
+                    break;
+                case "exclude":
+                    options.getFilterRules().add("- " + required(name, value));
+                    break;
+                case "rules":
+                    try {
+                        options.getFilterRules().addAll(
+                                Files.readAllLines(Paths.get(required(name, value)), StandardCharsets.UTF_8));
+                    } catch (IOException e) {
+                        throw new IllegalArgumentException("Can't read " + value + ": " + e.getMessage());
+                    }
+                    break;
+                case "spill":
+                    String[] spill = required(name, value).split(",", 2);
+                    options.setMaxFilesInMemory(Integer.parseInt(spill[0]));
+                    if (spill.length > 1)
+                        options.setSpillDirectory(new File(spill[1]));
+                    break;
+                case "prefetch":
+                    options.setPrefetchDepth(value == null ? 32 : Integer.parseInt(value));
+                    break;
+                case "chunk-latency":
+                    options.setChunkLatencyMillis(Long.parseLong(required(name, value)));
+                    break;
+                case "drop-cache":
+                    options.setDropCache(true);
+                    break;
+                case "send":
+                    send = true;
+                    break;
+                case "compress":
+                    options.setCompress(true);
+                    break;
+                case "delta":
+                    options.setDelta(true);
+                    break;
+                case "receive":
+                    String receive = required(name, value);
+                    int colon = receive.lastIndexOf(':');
+                    if (colon >= 0) {
+                        receiveAddress = address(receive.substring(0, colon));
+                        receive = receive.substring(colon + 1);
+                    }
+                    receivePort = Integer.parseInt(receive);
+                    break;
+                case "help":
+                    System.out.println(USAGE);
+                    System.exit(0);
+                    return;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        if (!send && (options.isCompress() || options.isDelta()))
+            throw new IllegalArgumentException("--compress and --delta only apply with --send");
+        if (receivePort >= 0) {
+            parseReceiverArgs(positional);
+            return;
+        }
+        if (send) {
+            parseSenderArgs(positional);
+            return;
+        }
+        if (positional.size() < 2)
+            throw new IllegalArgumentException("Source and destination expected");
+        source = new File(positional.get(0));
+        destination = new File(positional.get(1));
+        if (!source.exists())
+            throw new IllegalArgumentException(source + " doesn't exist");
+        if (!destination.isDirectory())
+            throw new IllegalArgumentException(destination + " is not a directory");
+        for (String extra : positional.subList(2, positional.size())) {
+            File extraDestination = new File(extra);
+            if (!extraDestination.isDirectory())
+                throw new IllegalArgumentException(extraDestination + " is not a directory");
+            options.getExtraDestinations().add(extraDestination);
+        }
+        if (options.isInPlace() && options.isDurable())
+            throw new IllegalArgumentException("--in-place can't be combined with --durable, which replaces " +
+                    "destination files as a whole");
+        if (!options.getExtraDestinations().isEmpty() && (options.isResumable() || options.isDurable() ||
+                options.isSparse() || options.isInPlace() || options.isHardLinks() || options.isDeduplicate() ||
+                options.isDirectorySummaries()))
+            throw new IllegalArgumentException("Several destinations can't be combined with --resume, --durable, " +
+                    "--sparse, --in-place, --hard-links, --dedup or --summaries");
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one thread expected");
+        if (strategies.isEmpty())
+            strategies.add(CopyStrategies.SIZE_STRATEGY);
+        new PathFilter(options.getFilterRules()); // fail early on bad rules
+    }
+
+    private void parseReceiverArgs(List<String> positional) {
+        if (positional.size() != 1)
+            throw new IllegalArgumentException("Destination expected");
+        destination = new File(positional.get(0));
+        if (!destination.isDirectory())
+            throw new IllegalArgumentException(destination + " is not a directory");
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one thread expected");
+        // the source is only known by its size and modification time
+        for (CopyStrategy strategy : strategies)
+            if (strategy != CopyStrategies.MOD_TIME_STRATEGY && strategy != CopyStrategies.SIZE_STRATEGY &&
+                    strategy != CopyStrategies.ALWAYS_COPY_STRATEGY)
+                throw new IllegalArgumentException("Receiver can only use mtime, size or always strategies");
+        if (strategies.isEmpty())
+            strategies.add(CopyStrategies.SIZE_STRATEGY);
+    }
+
+    private void parseSenderArgs(List<String> positional) {
+        if (positional.size() != 2)
+            throw new IllegalArgumentException("Source and receiver address expected");
+        source = new File(positional.get(0));
+        if (!source.exists())
+            throw new IllegalArgumentException(source + " doesn't exist");
+        String address = positional.get(1);
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0)
+            throw new IllegalArgumentException("Receiver address expected as <host>:<port>: " + address);
+        options.setRemoteAddress(new InetSocketAddress(address.substring(0, colon),
+                Integer.parseInt(address.substring(colon + 1))));
+        // destinations only name files on the receiver
+        destination = new File(address);
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one thread expected");
+        if (!strategies.isEmpty())
+            throw new IllegalArgumentException("Strategy is chosen by the receiver");
+        if (options.isResumable() || options.isDurable() || options.isSparse() || options.isInPlace() ||
+                options.isHardLinks() || options.isDeduplicate() || options.isDirectorySummaries() ||
+                options.getPrefetchDepth() > 0 || options.isDropCache())
+            throw new IllegalArgumentException("--send can't be combined with --resume, --durable, --sparse, " +
+                    "--in-place, --hard-links, --dedup, --summaries, --prefetch or --drop-cache");
+        strategies.add(CopyStrategies.ALWAYS_COPY_STRATEGY);
+        new PathFilter(options.getFilterRules()); // fail early on bad rules
+    }
+
+    private static String required(String name, String value) {
+        if (value == null || value.isEmpty())
+            throw new IllegalArgumentException("--" + name + " requires a value");
+        return value;
+    }
+
+    private static InetAddress address(String host) {
+        // IPv6 addresses are written in brackets to tell them from the port
+        if (host.startsWith("[") && host.endsWith("]"))
+            host = host.substring(1, host.length() - 1);
+        try {
+            return InetAddress.getByName(host);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Unknown address: " + host);
+        }
+    }
+
+    private static int positive(String name, String value) {
+        int n = Integer.parseInt(value);
+        if (n < 1)
+            throw new IllegalArgumentException("--" + name + " expects a positive number");
+        return n;
+    }
+
+    private static CopyStrategy strategy(String name) {
+        switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case "mtime":
+                return CopyStrategies.MOD_TIME_STRATEGY;
+            case "size":
+                return CopyStrategies.SIZE_STRATEGY;
+            case "headtail":
+                return CopyStrategies.HEAD_TAIL_STRATEGY;
+            case "hash":
+                return CopyStrategies.HASH_STRATEGY;
+            case "content":
+                return CopyStrategies.CONTENT_STRATEGY;
+            case "always":
+                return CopyStrategies.ALWAYS_COPY_STRATEGY;
+            default:
+                throw new IllegalArgumentException("Unknown strategy: " + name);
+        }
+    }
+
+    private void run() {
+        if (receivePort >= 0) {
+            receive();
+            return;
+        }
+        StatusListener[] sl = new StatusListener[threads];
+        ProgressListener[] pl = new ProgressListener[threads];
+        for (int i = 0; i < threads; i++) {
+            sl[i] = status -> { };
+            pl[i] = percent -> { };
+        }
+
+        CountDownLatch completed = new CountDownLatch(1);
+        copyEngine = new CopyEngine(
+                percent -> { },
+                status -> { },
+                pl,
+                sl,
+                System.out::println,
+                completed::countDown,
+                source,
+                destination,
+                copySourceItself,
+                CopyStrategies.combineStrategies(strategies.toArray(new CopyStrategy[strategies.size()])),
+                threads,
+                options
+        );
+
+        Thread commandReader = new Thread(this::readCommands, "commands");
+        commandReader.setDaemon(true);
+        commandReader.start();
+
+        try {
+            completed.await();
+        } catch (InterruptedException e) {
+            copyEngine.interrupt();
+        }
+        System.exit(0);
+    }
+
+    private void receive() {
+        TransportReceiver receiver;
+        try {
+            receiver = new TransportReceiver(receiveAddress, receivePort, destination,
+                    CopyStrategies.combineStrategies(strategies.toArray(new CopyStrategy[strategies.size()])),
+                    threads);
+        } catch (IOException e) {
+            System.err.println("Can't listen on " + receiveAddress.getHostAddress() + " port " + receivePort + ": " +
+                    e.getMessage());
+            System.exit(1);
+            return;
+        }
+        receiver.start();
+        System.out.println(String.format("Receiving into %s on %s port %d, type 'stop' to quit",
+                destination.getAbsolutePath(), receiveAddress.getHostAddress(), receiver.getPort()));
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        try {
+            String line;
+            while ((line = in.readLine()) != null && !line.trim().equals("stop")) {
+                if (!line.trim().isEmpty())
+                    System.out.println("Unknown command: " + line);
+            }
+            if (line == null)
+                receiver.join(); // no console, serve until killed
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        receiver.stop();
+        System.out.println(String.format("%d files received, %s", receiver.getFilesReceived(),
+                Utils.bytesToHumanReadable(receiver.getBytesReceived())));
+        System.exit(0);
+    }
+
+    private void readCommands() {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] command = line.trim().split("\\s+");
+                try {
+                    if (command[0].equals("stop"))
+                        copyEngine.interrupt();
+                    else if (command[0].equals("bwlimit") && command.length == 2)
+                        copyEngine.setBytesPerSecondLimit(Utils.humanReadableToBytes(command[1]));
+                    else if (command[0].equals("fpslimit") && command.length == 2)
+                        copyEngine.setFilesPerSecondLimit(Long.parseLong(command[1]));
+                    else if (!command[0].isEmpty())
+                        System.out.println("Unknown command: " + line);
+                } catch (IllegalArgumentException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -4,16 +4,32 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Stack;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class CopyEngine {
     public static final int TRANSFER_CHUNK_SIZE = 16 * 1024 * 1024;
+    public static final int MIN_TRANSFER_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_TRANSFER_CHUNK_SIZE = 256 * 1024 * 1024;
+    // how often offset reached in a large file is recorded in the journal
+    public static final long JOURNAL_CHECKPOINT_BYTES = 64 * 1024 * 1024;
+    private static final int MAX_PENDING_COPIES = 1024;
+    private static final int COPY_BATCH_SIZE = 64;
 
     private final ProgressListener totalProgressListener;
     private final StatusListener totalStatusListener;
@@ -23,6 +39,28 @@ public class CopyEngine {
     private final File destination;
     private final boolean copySourceItself;
     private final CopyStrategy copyStrategy;
+    private final CopyOptions options;
+    private final int threads;
+    private final DeviceScheduler deviceScheduler;
+    private final RateLimiter bytesRateLimiter;
+    private final RateLimiter filesRateLimiter;
+    private final PressureGovernor pressureGovernor;
+    private final CopyJournal journal;
+    private final DirectorySyncer directorySyncer;
+    private final SparseCopier sparseCopier;
+    private final BlockPatcher blockPatcher;
+    private final ChunkSizer chunkSizer;
+    private final DirectorySummaries directorySummaries;
+    private final FanOutCopier fanOutCopier;
+    private final AtomicInteger failedFiles = new AtomicInteger();
+    // absolute paths of destinations whose copy failed, possibly left partly written, not to be linked to
+    private final Set<String> failedDestinations = ConcurrentHashMap.newKeySet();
+    private final CreatedDirectories createdDirectories = new CreatedDirectories();
+    private final Map<FileToCopy, Long> resumeOffsets = new ConcurrentHashMap<>();
+    private Map<FileToCopy, List<File>> fanOutDestinations = Collections.emptyMap();
+    // destination files this job hard links other destinations to
+    private Set<File> linkTargets = Collections.emptySet();
+    private volatile boolean completed;
 
     private ArrayBlockingQueue<Utils.Pair<StatusListener, ProgressListener>> currentFileListeners;
 
@@ -35,6 +73,8 @@ public class CopyEngine {
     private long startedTimestamp;
 
     private ExecutorService executor;
+    private Prefetcher prefetcher;
+    private volatile WorkStealingScheduler<FileToCopy> scheduler;
 
     public CopyEngine(ProgressListener totalProgressListener,
                       StatusListener totalStatusListener,
@@ -46,7 +86,8 @@ public class CopyEngine {
                       File destination,
                       boolean copySourceItself,
                       CopyStrategy copyStrategy,
-                      int threads) {
+                      int threads,
+                      CopyOptions options) {
         this.totalProgressListener = totalProgressListener;
         this.totalStatusListener = totalStatusListener;
         this.auxStatusListener = auxStatusListener;
@@ -55,12 +96,31 @@ public class CopyEngine {
         this.destination = destination;
         this.copySourceItself = copySourceItself;
         this.copyStrategy = copyStrategy;
+        this.options = options;
+        this.threads = threads;
+        this.deviceScheduler = new DeviceScheduler(
+                options.getDeviceReadLimit() > 0 ? options.getDeviceReadLimit() : threads,
+                options.getDeviceWriteLimit() > 0 ? options.getDeviceWriteLimit() : threads);
+        this.bytesRateLimiter = new RateLimiter(options.getBytesPerSecondLimit());
+        this.filesRateLimiter = new RateLimiter(options.getFilesPerSecondLimit());
+        this.pressureGovernor = options.isPressureThrottling() ?
+                new PressureGovernor(threads, options.getPressureHighThreshold(), options.getPressureLowThreshold(),
+                        auxStatusListener) :
+                null;
+        this.journal = options.isResumable() ? new CopyJournal(destination) : null;
+        this.directorySyncer = options.isDurable() ? new DirectorySyncer() : null;
+        this.sparseCopier = options.isSparse() ? new SparseCopier() : null;
+        this.blockPatcher = options.isInPlace() && !options.isDurable() ? new BlockPatcher() : null;
+        this.chunkSizer = new ChunkSizer(options.getChunkLatencyMillis(), TRANSFER_CHUNK_SIZE,
+                MIN_TRANSFER_CHUNK_SIZE, MAX_TRANSFER_CHUNK_SIZE);
+        this.directorySummaries = options.isDirectorySummaries() ? new DirectorySummaries(destination) : null;
+        this.fanOutCopier = options.getExtraDestinations().isEmpty() ? null : new FanOutCopier();
 
         currentFileListeners = new ArrayBlockingQueue<>(threads);
         for (int i = 0; i < threads; i++)
             currentFileListeners.add(new Utils.Pair<>(fileStatusListeners[i], fileProgressListeners[i]));
 
-        this.executor = new ThreadPoolExecutor(1, threads - 1, 30, TimeUnit.SECONDS,  // since we have caller runs policy: caller thread is counted too, hence -1
+        this.executor = new ThreadPoolExecutor(1, Math.max(1, threads - 1), 30, TimeUnit.SECONDS,  // since we have caller runs policy: caller thread is counted too, hence -1
                 new LinkedBlockingDeque<>(100), new ThreadPoolExecutor.CallerRunsPolicy());
 
         worker = new Thread(CopyEngine.this::run);
@@ -73,6 +133,24 @@ public class CopyEngine {
         auxStatusListener.status("Interrupted");
     }
 
+    /**
+     * Changes copying bandwidth limit, can be called while copying.
+     *
+     * @param bytesPerSecond new limit, {@code 0} means unlimited
+     */
+    public void setBytesPerSecondLimit(long bytesPerSecond) {
+        bytesRateLimiter.setPermitsPerSecond(bytesPerSecond);
+    }
+
+    /**
+     * Changes limit of files started per second, can be called while copying.
+     *
+     * @param filesPerSecond new limit, {@code 0} means unlimited
+     */
+    public void setFilesPerSecondLimit(long filesPerSecond) {
+        filesRateLimiter.setPermitsPerSecond(filesPerSecond);
+    }
+
     private void run() {
         try {
             running = true;
@@ -80,6 +158,20 @@ public class CopyEngine {
         } catch (AbortException e) {
             e.printStackTrace();
         } finally {
+            // no copy may still be writing files or journal records once these are torn down
+            WorkStealingScheduler<FileToCopy> scheduler = this.scheduler;
+            if (scheduler != null)
+                scheduler.stopAndWait();
+            if (pressureGovernor != null)
+                pressureGovernor.stop();
+            if (directorySyncer != null)
+                directorySyncer.stop();
+            if (fanOutCopier != null)
+                fanOutCopier.stop();
+            if (journal != null)
+                journal.close(completed && failedFiles.get() == 0); // keep it to retry failed files
+            if (directorySummaries != null && completed && failedFiles.get() == 0)
+                directorySummaries.save();
             running = false;
             completionListener.run();
         }
@@ -91,26 +183,103 @@ public class CopyEngine {
 
     private void run0() {
         auxStatusListener.status("Scanning source files");
-        List<FileToCopy> copyList = new FilesCollector(source, destination, copySourceItself, totalStatusListener).collectListOfFiles();
+        if (directorySummaries != null)
+            directorySummaries.load();
+        FilesCollector filesCollector = new FilesCollector(source, destination, copySourceItself, totalStatusListener,
+                options.isHardLinks(), directorySummaries, new PathFilter(options.getFilterRules()),
+                options.getSpillDirectory(), options.getMaxFilesInMemory());
+        FileTable fileTable = filesCollector.collectListOfFiles();
+        System.out.println(String.format("File list: %d files in %d directories, %s%s", fileTable.size(),
+                fileTable.directoryCount(), Utils.bytesToHumanReadable(fileTable.memoryFootprint()),
+                fileTable.isSpilled() ? " + " + Utils.bytesToHumanReadable(fileTable.spilledBytes()) + " spilled" : ""));
+        List<FileToCopy> copyList = fileTable;
+
+        if (options.getRemoteAddress() != null) {
+            sendToReceiver(options.getCopyOrder().sort(copyList));
+            return;
+        }
+
+        List<FileToCopy> resumedList = Collections.emptyList();
+        if (journal != null && journal.load() > 0) {
+            auxStatusListener.status("Checking journal of previous run");
+            resumedList = new ArrayList<>();
+            BitSet notJournaled = new BitSet(fileTable.size());
+            int skipped = 0;
+            for (int i = 0; i < fileTable.size(); i++) {
+                FileToCopy fileToCopy = fileTable.get(i);
+                long offset = journal.resumeOffset(fileToCopy, writtenFile(fileToCopy));
+                if (offset == Long.MAX_VALUE)
+                    skipped++;
+                else if (offset >= 0) {
+                    resumeOffsets.put(fileToCopy, offset);
+                    resumedList.add(fileToCopy);
+                } else
+                    notJournaled.set(i);
+            }
+            fileTable.retain(notJournaled);
+            System.out.println(String.format("Journal: %d files already copied, %d to be resumed",
+                    skipped, resumedList.size()));
+        }
 
         auxStatusListener.status("Checking which files should be copied");
-        copyList = new StrategyFilter(copyStrategy, currentFileListeners, totalStatusListener, totalProgressListener, executor).filter(copyList);
+        StrategyFilter strategyFilter = new StrategyFilter(copyStrategy, currentFileListeners, totalStatusListener,
+                totalProgressListener, executor, destination, options.getExtraDestinations());
+        copyList = strategyFilter.filter(copyList);
+        if (fanOutCopier != null)
+            fanOutDestinations = strategyFilter.getDestinations();
+
+        List<Utils.Pair<File, File>> hardLinks = filesCollector.getHardLinks();
+        if (options.isDeduplicate() && !Thread.currentThread().isInterrupted()) {
+            auxStatusListener.status("Looking for duplicate files");
+            Deduplicator deduplicator = new Deduplicator(options.getDeduplicateMinSize(), executor, totalStatusListener);
+            copyList = deduplicator.deduplicate(copyList);
+            if (!deduplicator.getLinks().isEmpty()) {
+                hardLinks = new ArrayList<>(hardLinks);
+                hardLinks.addAll(deduplicator.getLinks());
+                System.out.println(String.format("%d duplicate files, %s saved", deduplicator.getLinks().size(),
+                        Utils.bytesToHumanReadable(deduplicator.getBytesSaved())));
+            }
+        }
+        if (!resumedList.isEmpty()) {
+            // known to be different, no need to check
+            List<FileToCopy> combined = new ArrayList<>(resumedList);
+            combined.addAll(copyList);
+            copyList = combined;
+        }
+        if (blockPatcher != null && !hardLinks.isEmpty()) {
+            linkTargets = new HashSet<>();
+            for (Utils.Pair<File, File> hardLink : hardLinks)
+                linkTargets.add(hardLink.b);
+        }
 
         if (Thread.currentThread().isInterrupted())
             return;
 
         Optional<Long> totalBytesToCopyOptional = copyList.stream().map(FileToCopy::getSourceBytes).reduce(Long::sum);
         if (!totalBytesToCopyOptional.isPresent()) {
+            createHardLinks(hardLinks);
             auxStatusListener.status("Nothing to copy!");
+            completed = !Thread.currentThread().isInterrupted();
             return;
         }
 
 //        if (true) return;
 
+        copyList = options.getCopyOrder().sort(copyList);
+
         totalBytesToCopy = totalBytesToCopyOptional.get();
         totalFilesToCopy = copyList.size();
         totalFilesCopied = new AtomicInteger(0);
 
+        auxStatusListener.status("Creating destination directories");
+        Set<File> destinationDirs = new HashSet<>();
+        for (FileToCopy fileToCopy : copyList)
+            destinationDirs.add(fileToCopy.getDestination().getParentFile());
+        for (List<File> destinations : fanOutDestinations.values())
+            for (File destination : destinations)
+                destinationDirs.add(destination.getParentFile());
+        createdDirectories.createAll(destinationDirs, executor);
+
         auxStatusListener.status(String.format("%s to copy (%d files)",
                 Utils.bytesToHumanReadable(totalBytesToCopy),
                 copyList.size()));
@@ -118,96 +287,571 @@ public class CopyEngine {
         totalBytesCopied = new AtomicLong(0);
         startedTimestamp = System.currentTimeMillis();
 
-        Stack<Future<?>> futures = new Stack<>();
+        if (pressureGovernor != null)
+            pressureGovernor.start();
+        if (directorySyncer != null)
+            directorySyncer.start();
+        if (journal != null) {
+            try {
+                journal.open();
+            } catch (IOException e) {
+                abort("Can't open journal " + journal.getFile() + ": " + e.getMessage());
+            }
+        }
 
-        for (FileToCopy fileToCopy : copyList) {
-            futures.push(executor.submit((Runnable) () -> {
-                copy(fileToCopy);
+        // files are streamed to the copying threads in per-directory batches, at most MAX_PENDING_COPIES queued
+        scheduler = new WorkStealingScheduler<>("MyCopy worker", threads, MAX_PENDING_COPIES, fileToCopy -> {
+            boolean copied = fanOutCopier != null ? copyFanOut(fileToCopy) : copy(fileToCopy);
+            if (copied) {
                 totalFilesCopied.incrementAndGet();
-            }));
+            } else {
+                failedDestinations.add(fileToCopy.getDestination().getAbsolutePath());
+                if (Thread.currentThread().isInterrupted())
+                    failedFiles.incrementAndGet(); // dropped, the job must not look complete
+            }
+        });
+        if (options.getPrefetchDepth() > 0) {
+            prefetcher = new Prefetcher(options.getPrefetchDepth(), MAX_PENDING_COPIES, createdDirectories,
+                    deviceScheduler);
+            prefetcher.start();
+        }
+        scheduler.start();
+
+        MyLinkedList<FileToCopy> batch = new MyLinkedList<>();
+        File batchDir = null;
+        for (FileToCopy fileToCopy : copyList) {
+            File dir = fileToCopy.getSource().getParentFile();
+            if (batch.size() >= COPY_BATCH_SIZE || (batchDir != null && !batchDir.equals(dir))) {
+                if (!scheduler.submit(batch)) {
+                    Thread.currentThread().interrupt(); // stopped by a failed task
+                    break;
+                }
+            }
+            batchDir = dir;
+            batch.add(fileToCopy);
+            if (prefetcher != null)
+                prefetcher.offer(fileToCopy);
 
             if (Thread.currentThread().isInterrupted())
                 break;
         }
 
-        while (!futures.isEmpty() && !Thread.currentThread().isInterrupted())
-            Utils.getFuture(futures.pop());
+        if (!Thread.currentThread().isInterrupted()) {
+            if (!scheduler.submit(batch)) {
+                Thread.currentThread().interrupt(); // stopped by a failed task
+            } else {
+                try {
+                    if (!scheduler.finish())
+                        Thread.currentThread().interrupt(); // a task failed, remaining files weren't copied
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        if (Thread.currentThread().isInterrupted())
+            scheduler.stopAndWait();
+        if (chunkSizer.getChunks() > 0)
+            System.out.println(String.format("Chunk size: average %s, smallest %s, largest %s over %d chunks",
+                    Utils.bytesToHumanReadable(chunkSizer.getAverageChunkSize()),
+                    Utils.bytesToHumanReadable(chunkSizer.getSmallestChunkSize()),
+                    Utils.bytesToHumanReadable(chunkSizer.getLargestChunkSize()), chunkSizer.getChunks()));
+        if (fanOutCopier != null && fanOutCopier.getBytesRead() > 0)
+            System.out.println(String.format("Fan-out: %s read once, %s written to %d destinations",
+                    Utils.bytesToHumanReadable(fanOutCopier.getBytesRead()),
+                    Utils.bytesToHumanReadable(fanOutCopier.getBytesWritten()),
+                    options.getExtraDestinations().size() + 1));
+        if (prefetcher != null) {
+            prefetcher.stop();
+            System.out.println(String.format("Prefetch: %d hits, %d misses, %d wasted",
+                    prefetcher.getHits(), prefetcher.getMisses(), prefetcher.getWasted()));
+        }
+
+        createHardLinks(hardLinks);
 
+        completed = !Thread.currentThread().isInterrupted() && !scheduler.isStopped();
+        if (!completed) {
+            auxStatusListener.status(String.format("Stopped after %s, not all files were copied",
+                    Utils.millisToHumanReadable(System.currentTimeMillis() - startedTimestamp)));
+            return;
+        }
+        auxStatusListener.status(String.format("Done! %s%s%s",
+                Utils.millisToHumanReadable(System.currentTimeMillis() - startedTimestamp),
+                sparseCopier == null ? "" :
+                        ", " + Utils.bytesToHumanReadable(sparseCopier.getBytesSkipped()) + " of holes skipped",
+                blockPatcher == null ? "" :
+                        ", " + Utils.bytesToHumanReadable(blockPatcher.getBytesUnchanged()) + " unchanged"));
+    }
+
+    /**
+     * Pushes files to a {@link TransportReceiver}, which decides which of them to copy.
+     */
+    private void sendToReceiver(List<FileToCopy> copyList) {
+        auxStatusListener.status(String.format("Offering %d files to %s", copyList.size(),
+                options.getRemoteAddress()));
+        totalFilesCopied = new AtomicInteger(0);
+        totalBytesCopied = new AtomicLong(0);
+        startedTimestamp = System.currentTimeMillis();
+        AtomicInteger wantedFiles = new AtomicInteger();
+        AtomicLong wantedBytes = new AtomicLong();
+        long[] prevBytesPerSec = {-1};
+        Utils.Pair<StatusListener, ProgressListener> currentFileStatus = currentFileListeners.poll();
+        FileToCopy[] currentFile = new FileToCopy[1];
+
+        TransportSender sender = new TransportSender(options.getRemoteAddress(), options.isCompress(), options.isDelta(),
+                new TransportSender.Listener() {
+                    @Override
+                    public void wanted(FileToCopy fileToCopy) {
+                        wantedFiles.incrementAndGet();
+                        wantedBytes.addAndGet(fileToCopy.getSourceBytes());
+                    }
+
+                    @Override
+                    public void beforeChunk(long bytes) {
+                        bytesRateLimiter.acquire(bytes);
+                    }
+
+                    @Override
+                    public void sent(FileToCopy fileToCopy, long bytes, long transferred, long nanos) {
+                        if (currentFile[0] != fileToCopy) {
+                            currentFileStatus.a.status(fileToCopy.getSource().getAbsolutePath());
+                            currentFile[0] = fileToCopy;
+                        }
+                        if (pressureGovernor != null)
+                            pressureGovernor.pauseAfterChunk(nanos);
+                        // totals grow as the receiver asks for more files
+                        totalBytesToCopy = wantedBytes.get();
+                        totalFilesToCopy = wantedFiles.get();
+                        totalBytesCopied.addAndGet(bytes);
+                        prevBytesPerSec[0] = reportProgress(currentFileStatus, transferred,
+                                fileToCopy.getSourceBytes(), prevBytesPerSec[0]);
+                    }
+
+                    @Override
+                    public void completed(FileToCopy fileToCopy, String error) {
+                        if (error == null) {
+                            totalFilesCopied.incrementAndGet();
+                        } else {
+                            System.out.println(fileToCopy.getDestination() + ": " + error);
+                            failedFiles.incrementAndGet();
+                        }
+                    }
+                });
+        try {
+            if (pressureGovernor != null)
+                pressureGovernor.start();
+            sender.send(copyList, destination);
+        } catch (IOException e) {
+            abort("Can't send to " + options.getRemoteAddress() + ": " + e.getMessage());
+        } finally {
+            currentFileListeners.add(currentFileStatus);
+        }
+
+        System.out.println(String.format("Receiver wanted %d of %d files, %s sent, %d written",
+                wantedFiles.get(), copyList.size(), Utils.bytesToHumanReadable(sender.getBytesSent()),
+                totalFilesCopied.get()));
+        if (sender.getMatchedBytes() + sender.getLiteralBytes() > 0)
+            System.out.println(String.format("Delta: %s found on the receiver, %s sent as literal data",
+                    Utils.bytesToHumanReadable(sender.getMatchedBytes()),
+                    Utils.bytesToHumanReadable(sender.getLiteralBytes())));
+        completed = !Thread.currentThread().isInterrupted();
         auxStatusListener.status(String.format("Done! %s",
                 Utils.millisToHumanReadable(System.currentTimeMillis() - startedTimestamp)));
     }
 
-    private void copy(FileToCopy fileToCopy) {
+    /**
+     * Recreates extra hard links once their first links are copied.
+     *
+     * @param hardLinks pairs of (link, existing destination file to link to)
+     */
+    private void createHardLinks(List<Utils.Pair<File, File>> hardLinks) {
+        if (hardLinks.isEmpty() || Thread.currentThread().isInterrupted())
+            return;
+
+        auxStatusListener.status(String.format("Creating %d hard links", hardLinks.size()));
+        int created = 0;
+        for (Utils.Pair<File, File> hardLink : hardLinks) {
+            if (Thread.currentThread().isInterrupted())
+                break;
+
+            Path link = hardLink.a.toPath();
+            Path existing = hardLink.b.toPath();
+            if (!Files.exists(existing) || failedDestinations.contains(hardLink.b.getAbsolutePath())) {
+                System.out.println("Can't link " + link + ": " + existing + " wasn't copied");
+                failedFiles.incrementAndGet();
+                continue;
+            }
+            try {
+                if (Files.exists(link) && Files.isSameFile(link, existing))
+                    continue;
+                prepareDestDir(hardLink.a, false);
+                try {
+                    Files.createLink(link, existing);
+                } catch (IOException | UnsupportedOperationException e) {
+                    System.out.println("Can't link " + link + " (" + e.getMessage() + "), copying instead");
+                    Files.copy(existing, link, StandardCopyOption.REPLACE_EXISTING);
+                }
+                created++;
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                failedFiles.incrementAndGet();
+            }
+        }
+        System.out.println(String.format("%d hard links created", created));
+    }
+
+    /**
+     * @return whether the file was copied completely
+     */
+    private boolean copy(FileToCopy fileToCopy) {
         File destination = fileToCopy.getDestination();
-        prepareDestDir(destination);
+        File target = writtenFile(fileToCopy);
+        long resumeOffset = resumeOffsets.getOrDefault(fileToCopy, 0L);
+        // destination length before patching it in place, -1 if it is written from scratch
+        long patchedLength = blockPatcher != null && resumeOffset == 0 && destination.isFile() &&
+                !isHardLinked(destination) ? destination.length() : -1;
+        // in durable mode existing destination is replaced by rename, so it's intact until the copy is complete
+        prepareDestDir(destination, resumeOffset > 0 || patchedLength >= 0 || directorySyncer != null);
 
         long prevBytesPerSec = -1; // not shared between threads but that's fine
         Utils.Pair<StatusListener, ProgressListener> currentFileStatus = null;
+        DeviceScheduler.Ticket ticket = null;
+        boolean governorPermit = false;
+        boolean done = false;
+        boolean preallocated = false;
+        long transferred = resumeOffset;
+        // whether the journal holds a partial entry to resume this file from
+        boolean journaled = resumeOffset > 0;
         try {
+            filesRateLimiter.acquire(1);
+            if (pressureGovernor != null) {
+                pressureGovernor.acquireWorker();
+                governorPermit = true;
+            }
+            ticket = deviceScheduler.acquire(fileToCopy.getSource(), destination);
             currentFileStatus = currentFileListeners.poll();
 
-            FileChannel in = new FileInputStream(fileToCopy.getSource()).getChannel();
-            FileChannel out = new FileOutputStream(fileToCopy.getDestination()).getChannel();
+            FileChannel in = prefetcher == null ? null : prefetcher.take(fileToCopy);
+            if (in == null)
+                in = new FileInputStream(fileToCopy.getSource()).getChannel();
+            FileChannel out;
+            if (resumeOffset > 0) {
+                out = new RandomAccessFile(target, "rw").getChannel();
+                out.truncate(resumeOffset);
+                out.position(resumeOffset);
+                totalBytesCopied.addAndGet(resumeOffset);
+            } else if (patchedLength >= 0)
+                out = new RandomAccessFile(target, "rw").getChannel();
+            else
+                out = new FileOutputStream(target).getChannel();
 
             currentFileStatus.a.status(fileToCopy.getSource().getAbsolutePath());
 
             long bytesToTransfer = fileToCopy.getSourceBytes();
-            long transferred = 0;
+            long preallocateThreshold = options.getPreallocateThreshold();
+            // reserving space for holes would defeat sparse copying
+            if (sparseCopier == null && patchedLength < 0 && preallocateThreshold > 0 && bytesToTransfer >= preallocateThreshold) {
+                Preallocator.preallocate(target, out, bytesToTransfer, target != destination);
+                preallocated = true;
+            }
+            long nextCheckpoint = transferred + JOURNAL_CHECKPOINT_BYTES;
+            ChunkSizer.Stream chunks = chunkSizer.newStream(ticket.getDevices());
             while (!Thread.currentThread().isInterrupted() && transferred != bytesToTransfer) {
-                final long chunkSize = Math.min(TRANSFER_CHUNK_SIZE, bytesToTransfer - transferred);
-                long bytesRead = in.transferTo(transferred, chunkSize, out);
+                final long chunkSize = Math.min(
+                        bytesRateLimiter.chunkSize(chunks.next(), MIN_TRANSFER_CHUNK_SIZE),
+                        bytesToTransfer - transferred);
+                bytesRateLimiter.acquire(chunkSize);
+                long chunkStarted = System.nanoTime();
+                long bytesRead;
+                if (patchedLength >= 0)
+                    bytesRead = blockPatcher.transfer(in, transferred, chunkSize, out, patchedLength);
+                else if (sparseCopier != null)
+                    bytesRead = sparseCopier.transfer(in, transferred, chunkSize, out);
+                else
+                    bytesRead = in.transferTo(transferred, chunkSize, out);
+                long chunkNanos = System.nanoTime() - chunkStarted;
+                chunks.record(bytesRead, chunkNanos);
+                if (pressureGovernor != null)
+                    pressureGovernor.pauseAfterChunk(chunkNanos);
 
                 transferred += bytesRead;
                 totalBytesCopied.addAndGet(bytesRead);
 
-                long filePercent = (transferred * 100) / bytesToTransfer;
-                currentFileStatus.b.onProgress((int) filePercent);
-
-                long totalPercent = (totalBytesCopied.get() * 100) / totalBytesToCopy;
-                totalProgressListener.onProgress((int) totalPercent);
-
-                totalStatusListener.status(String.format("%s of %s (%d files left)",
-                        Utils.bytesToHumanReadable(totalBytesCopied.get()),
-                        Utils.bytesToHumanReadable(totalBytesToCopy),
-                        totalFilesToCopy - totalFilesCopied.get()));
-
-                long secondsPassed = (System.currentTimeMillis() - startedTimestamp) / 1000;
-                if (secondsPassed > 0) {
-                    long bytesPerSec = totalBytesCopied.get() / secondsPassed;
-                    if (bytesPerSec != prevBytesPerSec) {
-                        auxStatusListener.status(String.format("%s/sec", Utils.bytesToHumanReadable(bytesPerSec)));
-                        prevBytesPerSec = bytesPerSec;
-                    }
+                if (journal != null && transferred >= nextCheckpoint && transferred != bytesToTransfer) {
+                    out.force(false);
+                    journal.partial(fileToCopy, transferred);
+                    journaled = true;
+                    nextCheckpoint = transferred + JOURNAL_CHECKPOINT_BYTES;
                 }
+
+                prevBytesPerSec = reportProgress(currentFileStatus, transferred, bytesToTransfer, prevBytesPerSec);
             }
 
+            done = transferred == bytesToTransfer;
+            if (done && patchedLength >= 0)
+                blockPatcher.finish(out, bytesToTransfer);
+            else if (done && sparseCopier != null)
+                sparseCopier.finish(out, bytesToTransfer);
+            if (done && directorySyncer != null)
+                out.force(true);
+            else if (done && journal != null)
+                out.force(false); // before journaling it as completed, each copying thread forces its own file
             out.close();
             in.close();
+            if (done && options.isDropCache())
+                PageCacheDropper.drop(fileToCopy.getSource(), target, bytesToTransfer);
+
+            // data is written, let other files use the device while we wait for the directory group commit
+            deviceScheduler.release(ticket);
+            ticket = null;
+
+            if (done && directorySyncer != null) {
+                Files.move(target.toPath(), destination.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                directorySyncer.sync(destination.getParentFile());
+            }
+
+            if (done && journal != null)
+                journal.completed(fileToCopy);
         } catch (IOException e) {
             // abort(e.getMessage());
             System.out.println(e.getMessage());
+            failedFiles.incrementAndGet();
+            done = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (preallocated && !done)
+                trimPreallocated(target, transferred);
+            // keep partially written temporary file only if the journal knows about it
+            if (!done && target != destination && !journaled && target.exists() && !target.delete())
+                System.out.println("Can't remove " + target.getAbsolutePath());
+            if (currentFileStatus != null)
+                currentFileListeners.add(currentFileStatus);
+            if (ticket != null)
+                deviceScheduler.release(ticket);
+            if (governorPermit)
+                pressureGovernor.releaseWorker();
+        }
+        return done;
+    }
+
+    /**
+     * Copies a file to the main and extra destinations needing it, reading it once, see {@link FanOutCopier}.
+     * Every destination succeeds or fails on its own.
+     *
+     * @return whether the file was copied completely to at least one destination
+     */
+    private boolean copyFanOut(FileToCopy fileToCopy) {
+        List<File> destinations = fanOutDestinations.get(fileToCopy);
+        for (File destination : destinations)
+            prepareDestDir(destination, false);
+
+        long[] prevBytesPerSec = {-1};
+        Utils.Pair<StatusListener, ProgressListener> currentFileStatus = null;
+        DeviceScheduler.Ticket ticket = null;
+        boolean governorPermit = false;
+        FileChannel in = null;
+        List<File> opened = new ArrayList<>(destinations.size());
+        List<FileChannel> outs = new ArrayList<>(destinations.size());
+        IOException[] failures = new IOException[destinations.size()];
+        long transferred = 0;
+        int copied = 0;
+        try {
+            filesRateLimiter.acquire(1);
+            if (pressureGovernor != null) {
+                pressureGovernor.acquireWorker();
+                governorPermit = true;
+            }
+            ticket = deviceScheduler.acquire(fileToCopy.getSource(), destinations);
+            currentFileStatus = currentFileListeners.poll();
+
+            in = prefetcher == null ? null : prefetcher.take(fileToCopy);
+            if (in == null)
+                in = new FileInputStream(fileToCopy.getSource()).getChannel();
+            long bytesToTransfer = fileToCopy.getSourceBytes();
+            long preallocateThreshold = options.getPreallocateThreshold();
+            for (File destination : destinations) {
+                try {
+                    FileChannel out = new FileOutputStream(destination).getChannel();
+                    opened.add(destination);
+                    outs.add(out);
+                    if (preallocateThreshold > 0 && bytesToTransfer >= preallocateThreshold)
+                        Preallocator.preallocate(destination, out, bytesToTransfer, false);
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                    failedFiles.incrementAndGet();
+                }
+            }
+            if (outs.isEmpty())
+                return false;
+
+            currentFileStatus.a.status(fileToCopy.getSource().getAbsolutePath());
+            Utils.Pair<StatusListener, ProgressListener> fileStatus = currentFileStatus;
+            long[] read = {0};
+            transferred = fanOutCopier.copy(in, bytesToTransfer, outs, failures, new FanOutCopier.ChunkListener() {
+                @Override
+                public void beforeRead(long bytes) {
+                    bytesRateLimiter.acquire(bytes);
+                }
+
+                @Override
+                public void afterRead(long bytes, long nanos) {
+                    if (pressureGovernor != null)
+                        pressureGovernor.pauseAfterChunk(nanos);
+                    read[0] += bytes;
+                    totalBytesCopied.addAndGet(bytes);
+                    prevBytesPerSec[0] = reportProgress(fileStatus, read[0], bytesToTransfer, prevBytesPerSec[0]);
+                }
+            });
+        } catch (IOException e) {
+            if (outs.isEmpty()) {
+                System.out.println(e.getMessage());
+                failedFiles.incrementAndGet();
+            }
+            Arrays.fill(failures, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
+            boolean done = transferred == fileToCopy.getSourceBytes();
+            if (!done && !Thread.currentThread().isInterrupted()) {
+                IOException shorter = new IOException(fileToCopy.getSource() + " got shorter while copying");
+                for (int i = 0; i < failures.length; i++)
+                    if (failures[i] == null)
+                        failures[i] = shorter;
+            }
+            for (int i = 0; i < outs.size(); i++) {
+                File destination = opened.get(i);
+                try {
+                    outs.get(i).close();
+                } catch (IOException e) {
+                    if (failures[i] == null)
+                        failures[i] = e;
+                }
+                if (done && failures[i] == null) {
+                    if (options.isDropCache())
+                        PageCacheDropper.drop(fileToCopy.getSource(), destination, transferred);
+                    copied++;
+                    continue;
+                }
+                if (failures[i] != null) {
+                    System.out.println(destination.getAbsolutePath() + ": " + failures[i].getMessage());
+                    failedFiles.incrementAndGet();
+                }
+                if (destination.exists() && !destination.delete())
+                    System.out.println("Can't remove " + destination.getAbsolutePath());
+            }
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // read only, nothing to lose
+                }
+            }
             if (currentFileStatus != null)
                 currentFileListeners.add(currentFileStatus);
+            if (ticket != null)
+                deviceScheduler.release(ticket);
+            if (governorPermit)
+                pressureGovernor.releaseWorker();
+        }
+        return copied > 0;
+    }
+
+    /**
+     * Reports progress of the current file and of the whole job.
+     *
+     * @return copying rate shown, to be passed as {@code prevBytesPerSec} next time
+     */
+    private long reportProgress(Utils.Pair<StatusListener, ProgressListener> currentFileStatus, long transferred,
+                                long bytesToTransfer, long prevBytesPerSec) {
+        long filePercent = (transferred * 100) / bytesToTransfer;
+        currentFileStatus.b.onProgress((int) filePercent);
+
+        long totalPercent = (totalBytesCopied.get() * 100) / totalBytesToCopy;
+        totalProgressListener.onProgress((int) totalPercent);
+
+        totalStatusListener.status(String.format("%s of %s (%d files left)",
+                Utils.bytesToHumanReadable(totalBytesCopied.get()),
+                Utils.bytesToHumanReadable(totalBytesToCopy),
+                totalFilesToCopy - totalFilesCopied.get()));
+
+        long secondsPassed = (System.currentTimeMillis() - startedTimestamp) / 1000;
+        if (secondsPassed > 0) {
+            long bytesPerSec = totalBytesCopied.get() / secondsPassed;
+            if (bytesPerSec != prevBytesPerSec) {
+                // the governor's transition messages are soon overwritten, the label keeps showing throttling here
+                double factor = pressureGovernor == null ? 1 : pressureGovernor.getFactor();
+                auxStatusListener.status(factor >= 1 ?
+                        String.format("%s/sec", Utils.bytesToHumanReadable(bytesPerSec)) :
+                        String.format("%s/sec, throttled to %d%% (pressure)", Utils.bytesToHumanReadable(bytesPerSec),
+                                Math.round(factor * 100)));
+                return bytesPerSec;
+            }
         }
+        return prevBytesPerSec;
     }
 
-    private void prepareDestDir(File destination) {
-        if (destination.exists()) {
-            if (!destination.delete())
-                abort("Can't remove " + destination.getAbsolutePath());
+    // cut reserved space after an interruption or failure, so that partial file size reflects the data copied
+    private void trimPreallocated(File target, long transferred) {
+        if (!target.exists())
+            return;
+        // channel operations fail on interrupted threads
+        boolean interrupted = Thread.interrupted();
+        try {
+            Preallocator.trim(target, transferred);
+        } catch (IOException e) {
+            System.out.println("Can't trim " + target.getAbsolutePath() + ": " + e.getMessage());
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return whether patching {@code destination} in place would change other files sharing its inode too
+     */
+    private boolean isHardLinked(File destination) {
+        if (linkTargets.contains(destination))
+            return true;
+        try {
+            return ((Number) Files.getAttribute(destination.toPath(), "unix:nlink")).intValue() > 1;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return true; // can't tell, copy it fresh
         }
+    }
+
+    /**
+     * @return file the data is written to: the destination itself or, in durable mode, a temporary file next to it
+     */
+    private File writtenFile(FileToCopy fileToCopy) {
+        File destination = fileToCopy.getDestination();
+        if (directorySyncer == null)
+            return destination;
+        return new File(destination.getParentFile(), "." + destination.getName() + ".mycopy-tmp");
+    }
+
+    private void prepareDestDir(File destination, boolean resuming) {
+        // one unlink, failing harmlessly for new files
+        if (!resuming && !destination.delete() && destination.exists())
+            abort("Can't remove " + destination.getAbsolutePath());
         File destParent = destination.getParentFile();
-        if (!destParent.exists()) {
-            if (!destParent.mkdirs())
-                if (!destParent.exists()) // double check cause we can have races from other threads
-                    abort("Can't create " + destParent + " directory");
-        } else if (!destParent.isDirectory())
-            abort(destParent.getAbsolutePath() + " is not a directory");
+        if (!createdDirectories.ensure(destParent)) {
+            if (destParent.exists())
+                abort(destParent.getAbsolutePath() + " is not a directory");
+            abort("Can't create " + destParent + " directory");
+        }
     }
 
+    /**
+     * Stops the whole job, also when called from a copying thread: the scheduler drops queued files and the main
+     * thread is interrupted, so the job isn't taken as completed.
+     */
     private void abort(String msg) {
         System.out.println(msg);
+        WorkStealingScheduler<FileToCopy> scheduler = this.scheduler;
+        if (scheduler != null)
+            scheduler.stop();
+        worker.interrupt();
         executor.shutdown();
         try {
             executor.awaitTermination(10, TimeUnit.SECONDS);
@@ -0,0 +1,232 @@
+package org.kos.mycopy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-ahead journal of a copy job, allows an interrupted job to skip already copied files and to continue
+ * partially copied large files.
+ * <p>
+ * One record per line: {@code D size mtime path} for a completed file and {@code P size mtime offset path} for the
+ * offset reached in a file being copied, where {@code path} is the destination path and size/mtime are those of the
+ * source, so that a changed source is never skipped. Records are appended to a memory buffer and written out by a
+ * background thread which fsyncs once per batch (group commit), callers never wait for the journal fsync.
+ * <p>
+ * Data of a file is forced to disk by the copying thread before its offset or completion is recorded, so recorded
+ * data survives crashes. Completed files are checked by size on resume.
+ */
+public class CopyJournal {
+    public static final String FILE_NAME = ".mycopy.journal";
+
+    private static final long COMMIT_INTERVAL_MS = 100;
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private final Object lock = new Object();
+    private StringBuilder pending = new StringBuilder();
+    private int pendingRecords;
+    private FileChannel channel;
+    private Thread committer;
+    private volatile boolean closed;
+
+    private long commits;
+    private long records;
+
+    public CopyJournal(File destination) {
+        this.file = new File(destination, FILE_NAME);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads records left by a previous run, last record for a file wins.
+     *
+     * @return number of files found in the journal
+     */
+    public int load() {
+        entries.clear();
+        if (!file.exists())
+            return 0;
+
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                // last line may be torn by a crash, just ignore anything unparseable
+                String[] f = line.split(" ", line.startsWith("P ") ? 5 : 4);
+                try {
+                    if (f[0].equals("D") && f.length == 4)
+                        entries.put(f[3], new Entry(Long.parseLong(f[1]), Long.parseLong(f[2]), -1));
+                    else if (f[0].equals("P") && f.length == 5)
+                        entries.put(f[4], new Entry(Long.parseLong(f[1]), Long.parseLong(f[2]), Long.parseLong(f[3])));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Can't read journal " + file + ": " + e.getMessage());
+        }
+        return entries.size();
+    }
+
+    /**
+     * @param partialFile file where partially copied data is written to, either destination itself or a temporary
+     *                    file
+     * @return {@code -1} if file should be copied from scratch, {@code Long.MAX_VALUE} if it is already copied,
+     * otherwise offset to continue copying from
+     */
+    public long resumeOffset(FileToCopy fileToCopy, File partialFile) {
+        Entry entry = entries.get(fileToCopy.getDestination().getAbsolutePath());
+        if (entry == null)
+            return -1;
+
+        File src = fileToCopy.getSource();
+        File dst = fileToCopy.getDestination();
+        if (entry.size != fileToCopy.getSourceBytes() || entry.mtime != src.lastModified())
+            return -1; // source changed since
+
+        if (entry.offset < 0)
+            return dst.length() == entry.size ? Long.MAX_VALUE : -1;
+
+        if (partialFile.length() < entry.offset || !prefixTailMatches(src, partialFile, entry.offset))
+            return -1;
+        return entry.offset;
+    }
+
+    // recorded prefix was forced to disk before recording, compare its last block as a sanity check
+    private static boolean prefixTailMatches(File src, File dst, long offset) {
+        int len = (int) Math.min(1024 * 1024, offset);
+        if (len == 0)
+            return true;
+        try (FileChannel s = new FileInputStream(src).getChannel();
+             FileChannel d = new FileInputStream(dst).getChannel()) {
+            ByteBuffer sb = ByteBuffer.allocate(len);
+            ByteBuffer db = ByteBuffer.allocate(len);
+            while (sb.hasRemaining() && s.read(sb, offset - len + sb.position()) > 0) ;
+            while (db.hasRemaining() && d.read(db, offset - len + db.position()) > 0) ;
+            sb.flip();
+            db.flip();
+            return sb.equals(db);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void open() throws IOException {
+        channel = new FileOutputStream(file, true).getChannel();
+        closed = false;
+        committer = new Thread(this::commitLoop, "journal");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Must be called only after destination data is forced to disk.
+     */
+    public void completed(FileToCopy fileToCopy) {
+        append("D " + fileToCopy.getSourceBytes() + ' ' + fileToCopy.getSource().lastModified() + ' ' +
+                fileToCopy.getDestination().getAbsolutePath());
+    }
+
+    /**
+     * Must be called only after destination data up to {@code offset} is forced to disk.
+     */
+    public void partial(FileToCopy fileToCopy, long offset) {
+        append("P " + fileToCopy.getSourceBytes() + ' ' + fileToCopy.getSource().lastModified() + ' ' + offset + ' ' +
+                fileToCopy.getDestination().getAbsolutePath());
+    }
+
+    private void append(String record) {
+        synchronized (lock) {
+            pending.append(record).append('\n');
+            pendingRecords++;
+        }
+    }
+
+    private void commitLoop() {
+        while (!closed) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(COMMIT_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            commit();
+        }
+    }
+
+    private void commit() {
+        StringBuilder batch;
+        synchronized (lock) {
+            if (pending.length() == 0)
+                return;
+            batch = pending;
+            pending = new StringBuilder(batch.capacity());
+            records += pendingRecords;
+            pendingRecords = 0;
+        }
+        commits++;
+        try {
+            ByteBuffer buf = StandardCharsets.UTF_8.encode(batch.toString());
+            while (buf.hasRemaining())
+                channel.write(buf);
+            channel.force(false);
+        } catch (IOException e) {
+            System.out.println("Can't write journal " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops background committer and flushes everything appended so far.
+     *
+     * @param jobCompleted if {@code true} the journal is deleted, next run will start from scratch
+     */
+    public void close(boolean jobCompleted) {
+        if (channel != null)
+            stopCommitter();
+        // also when never opened: a run with nothing left to copy completes the job of the stale journal
+        if (jobCompleted && file.exists() && !file.delete())
+            System.out.println("Can't remove journal " + file);
+    }
+
+    private void stopCommitter() {
+        closed = true; // not interrupting: that would close the channel in the middle of a write
+        // channel operations fail on interrupted threads and we're likely closing because of an interruption
+        boolean interrupted = Thread.interrupted();
+        try {
+            committer.join();
+            commit();
+            channel.close();
+        } catch (InterruptedException | IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        channel = null;
+        if (records > 0)
+            System.out.println(String.format("Journal: %d records written in %d group commits", records, commits));
+    }
+
+    private static final class Entry {
+        final long size;
+        final long mtime;
+        final long offset; // -1 for completed files
+
+        Entry(long size, long mtime, long offset) {
+            this.size = size;
+            this.mtime = mtime;
+            this.offset = offset;
+        }
+    }
+}
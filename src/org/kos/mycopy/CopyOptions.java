@@ -0,0 +1,353 @@
+package org.kos.mycopy;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tunables of a single copy job which are not essential enough to be {@link CopyEngine} constructor parameters.
+ */
+public class CopyOptions {
+    private int deviceReadLimit = 0;
+    private int deviceWriteLimit = 0;
+    private CopyOrder copyOrder = CopyOrder.AS_SCANNED;
+    private long bytesPerSecondLimit = 0;
+    private long filesPerSecondLimit = 0;
+    private boolean pressureThrottling = false;
+    private double pressureHighThreshold = 40;
+    private double pressureLowThreshold = 10;
+    private boolean resumable = false;
+    private boolean durable = false;
+    private long preallocateThreshold = 0;
+    private boolean sparse = false;
+    private boolean hardLinks = false;
+    private boolean deduplicate = false;
+    private long deduplicateMinSize = 4096;
+    private boolean inPlace = false;
+    private boolean directorySummaries = false;
+    private List<String> filterRules = new ArrayList<>();
+    private int maxFilesInMemory = 4_000_000;
+    private File spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+    private int prefetchDepth = 0;
+    private long chunkLatencyMillis = 75;
+    private boolean dropCache = false;
+    private List<File> extraDestinations = new ArrayList<>();
+    private InetSocketAddress remoteAddress = null;
+    private boolean compress = false;
+    private boolean delta = false;
+
+    /**
+     * @return max number of files being read from one non-rotational device at the same time, {@code 0} means
+     * limited by the number of threads only
+     */
+    public int getDeviceReadLimit() {
+        return deviceReadLimit;
+    }
+
+    public void setDeviceReadLimit(int deviceReadLimit) {
+        this.deviceReadLimit = deviceReadLimit;
+    }
+
+    /**
+     * @return max number of files being written to one non-rotational device at the same time, {@code 0} means
+     * limited by the number of threads only
+     */
+    public int getDeviceWriteLimit() {
+        return deviceWriteLimit;
+    }
+
+    public void setDeviceWriteLimit(int deviceWriteLimit) {
+        this.deviceWriteLimit = deviceWriteLimit;
+    }
+
+    public CopyOrder getCopyOrder() {
+        return copyOrder;
+    }
+
+    public void setCopyOrder(CopyOrder copyOrder) {
+        this.copyOrder = copyOrder;
+    }
+
+    /**
+     * @return initial copying bandwidth limit, {@code 0} means unlimited
+     * @see CopyEngine#setBytesPerSecondLimit(long)
+     */
+    public long getBytesPerSecondLimit() {
+        return bytesPerSecondLimit;
+    }
+
+    public void setBytesPerSecondLimit(long bytesPerSecondLimit) {
+        this.bytesPerSecondLimit = bytesPerSecondLimit;
+    }
+
+    /**
+     * @return initial limit of files started per second, {@code 0} means unlimited
+     * @see CopyEngine#setFilesPerSecondLimit(long)
+     */
+    public long getFilesPerSecondLimit() {
+        return filesPerSecondLimit;
+    }
+
+    public void setFilesPerSecondLimit(long filesPerSecondLimit) {
+        this.filesPerSecondLimit = filesPerSecondLimit;
+    }
+
+    /**
+     * @return whether copying should slow down when the host is under I/O or memory pressure
+     * @see PressureGovernor
+     */
+    public boolean isPressureThrottling() {
+        return pressureThrottling;
+    }
+
+    public void setPressureThrottling(boolean pressureThrottling) {
+        this.pressureThrottling = pressureThrottling;
+    }
+
+    /**
+     * @return pressure stall percentage above which copying slows down
+     */
+    public double getPressureHighThreshold() {
+        return pressureHighThreshold;
+    }
+
+    public void setPressureHighThreshold(double pressureHighThreshold) {
+        this.pressureHighThreshold = pressureHighThreshold;
+    }
+
+    /**
+     * @return pressure stall percentage below which copying speeds up again
+     */
+    public double getPressureLowThreshold() {
+        return pressureLowThreshold;
+    }
+
+    public void setPressureLowThreshold(double pressureLowThreshold) {
+        this.pressureLowThreshold = pressureLowThreshold;
+    }
+
+    /**
+     * @return whether the job keeps a {@link CopyJournal} in the destination to be able to continue after
+     * interruption
+     */
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    /**
+     * @return whether files are written to a temporary sibling, fsynced and renamed over the destination, so that
+     * a crash never leaves a truncated destination file
+     */
+    public boolean isDurable() {
+        return durable;
+    }
+
+    public void setDurable(boolean durable) {
+        this.durable = durable;
+    }
+
+    /**
+     * @return files of this size or larger get their space reserved before copying, {@code 0} disables preallocation
+     * @see Preallocator
+     */
+    public long getPreallocateThreshold() {
+        return preallocateThreshold;
+    }
+
+    public void setPreallocateThreshold(long preallocateThreshold) {
+        this.preallocateThreshold = preallocateThreshold;
+    }
+
+    /**
+     * @return whether all-zero blocks are skipped instead of written, leaving holes in destination files
+     * @see SparseCopier
+     */
+    public boolean isSparse() {
+        return sparse;
+    }
+
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+    }
+
+    /**
+     * @return whether hard linked source files are copied once and linked to each other on the destination too
+     */
+    public boolean isHardLinks() {
+        return hardLinks;
+    }
+
+    public void setHardLinks(boolean hardLinks) {
+        this.hardLinks = hardLinks;
+    }
+
+    /**
+     * @return whether byte-identical source files are copied once and hard linked to each other on the destination
+     * @see Deduplicator
+     */
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * @return smaller files are never deduplicated
+     */
+    public long getDeduplicateMinSize() {
+        return deduplicateMinSize;
+    }
+
+    public void setDeduplicateMinSize(long deduplicateMinSize) {
+        this.deduplicateMinSize = deduplicateMinSize;
+    }
+
+    /**
+     * @return whether existing destination files are updated in place by rewriting only changed blocks, instead of
+     * being copied over. Not applicable in {@link #isDurable() durable} mode
+     * @see BlockPatcher
+     */
+    public boolean isInPlace() {
+        return inPlace;
+    }
+
+    public void setInPlace(boolean inPlace) {
+        this.inPlace = inPlace;
+    }
+
+    /**
+     * @return whether source subtrees unchanged since the last successful copy to the same destination are skipped
+     * without checking destination files
+     * @see DirectorySummaries
+     */
+    public boolean isDirectorySummaries() {
+        return directorySummaries;
+    }
+
+    public void setDirectorySummaries(boolean directorySummaries) {
+        this.directorySummaries = directorySummaries;
+    }
+
+    /**
+     * @return ordered include/exclude rules, see {@link PathFilter} for syntax
+     */
+    public List<String> getFilterRules() {
+        return filterRules;
+    }
+
+    public void setFilterRules(List<String> filterRules) {
+        this.filterRules = filterRules;
+    }
+
+    /**
+     * @return number of scanned files kept on heap, the rest of the file list is spilled to
+     * {@link #getSpillDirectory()}
+     */
+    public int getMaxFilesInMemory() {
+        return maxFilesInMemory;
+    }
+
+    public void setMaxFilesInMemory(int maxFilesInMemory) {
+        this.maxFilesInMemory = maxFilesInMemory;
+    }
+
+    /**
+     * @return directory for spilled file list segments, {@code null} to never spill
+     */
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * @return how many upcoming files are opened and read ahead before copying threads get to them, {@code 0} to
+     * disable prefetching
+     */
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    public void setPrefetchDepth(int prefetchDepth) {
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    /**
+     * @return time a single transfer call should take, chunk sizes adapt to it; {@code 0} for fixed
+     * {@link CopyEngine#TRANSFER_CHUNK_SIZE} chunks
+     */
+    public long getChunkLatencyMillis() {
+        return chunkLatencyMillis;
+    }
+
+    public void setChunkLatencyMillis(long chunkLatencyMillis) {
+        this.chunkLatencyMillis = chunkLatencyMillis;
+    }
+
+    /**
+     * @return whether to drop copied files from the page cache, see {@link PageCacheDropper}
+     */
+    public boolean isDropCache() {
+        return dropCache;
+    }
+
+    public void setDropCache(boolean dropCache) {
+        this.dropCache = dropCache;
+    }
+
+    /**
+     * @return destinations written in addition to the main one, reading every source file once, see
+     * {@link FanOutCopier}
+     */
+    public List<File> getExtraDestinations() {
+        return extraDestinations;
+    }
+
+    public void setExtraDestinations(List<File> extraDestinations) {
+        this.extraDestinations = extraDestinations;
+    }
+
+    /**
+     * @return address of a {@link TransportReceiver} to push files to instead of copying them to the destination,
+     * {@code null} to copy locally
+     */
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public void setRemoteAddress(InetSocketAddress remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * @return whether to deflate data sent to a {@link TransportReceiver}
+     */
+    public boolean isCompress() {
+        return compress;
+    }
+
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * @return whether to send differences from old versions of files a {@link TransportReceiver} has, see
+     * {@link DeltaEncoder}
+     */
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+}
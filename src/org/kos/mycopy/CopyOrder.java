@@ -0,0 +1,147 @@
+package org.kos.mycopy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Order in which files are handed to the copying threads.
+ * <p>
+ * Files are not copied into a sorted list: an {@code int} permutation of their indices is sorted and the result is a
+ * view through it, so a {@link FileTable} stays compact. Sort keys come from the table's columns where it has them.
+ */
+public enum CopyOrder {
+    /**
+     * Order in which files were found during the scan.
+     */
+    AS_SCANNED {
+        @Override
+        IntBinaryOperator comparator(List<FileToCopy> files) {
+            return null;
+        }
+    },
+
+    /**
+     * Source inode number order, which usually follows on-disk placement of file metadata and data on
+     * rotational media.
+     */
+    INODE {
+        @Override
+        IntBinaryOperator comparator(List<FileToCopy> files) {
+            long[] inodes = new long[files.size()];
+            for (int i = 0; i < inodes.length; i++)
+                inodes[i] = inode(files.get(i).getSource());
+            return (a, b) -> Long.compare(inodes[a], inodes[b]);
+        }
+    },
+
+    /**
+     * Files of one directory together, directories in path order.
+     */
+    DIRECTORY {
+        @Override
+        IntBinaryOperator comparator(List<FileToCopy> files) {
+            if (!(files instanceof FileTable))
+                return (a, b) -> {
+                    File fa = files.get(a).getSource();
+                    File fb = files.get(b).getSource();
+                    int res = fa.getParent().compareTo(fb.getParent());
+                    return res != 0 ? res : fa.getName().compareTo(fb.getName());
+                };
+
+            // rank directories by path once, files then compare by rank and name only
+            FileTable table = (FileTable) files;
+            int[] byPath = new int[table.directoryCount()];
+            for (int i = 0; i < byPath.length; i++)
+                byPath[i] = i;
+            String[] paths = new String[byPath.length];
+            for (int i = 0; i < paths.length; i++)
+                paths[i] = table.getDirectoryPath(i);
+            Utils.sortIndices(byPath, (a, b) -> paths[a].compareTo(paths[b]));
+            int[] ranks = new int[byPath.length];
+            for (int i = 0; i < byPath.length; i++)
+                ranks[byPath[i]] = i;
+            return (a, b) -> {
+                int res = Integer.compare(ranks[table.getDirectory(a)], ranks[table.getDirectory(b)]);
+                return res != 0 ? res : table.getName(a).compareTo(table.getName(b));
+            };
+        }
+    },
+
+    /**
+     * Largest files first, so the job doesn't end with a single thread copying a huge file.
+     */
+    LARGEST_FIRST {
+        @Override
+        IntBinaryOperator comparator(List<FileToCopy> files) {
+            IntBinaryOperator smallestFirst = SMALLEST_FIRST.comparator(files);
+            return (a, b) -> smallestFirst.applyAsInt(b, a);
+        }
+    },
+
+    /**
+     * Smallest files first, for quick visible progress in number of files.
+     */
+    SMALLEST_FIRST {
+        @Override
+        IntBinaryOperator comparator(List<FileToCopy> files) {
+            if (files instanceof FileTable) {
+                FileTable table = (FileTable) files;
+                return (a, b) -> Long.compare(table.getSize(a), table.getSize(b));
+            }
+            return (a, b) -> Long.compare(files.get(a).getSourceBytes(), files.get(b).getSourceBytes());
+        }
+    };
+
+    /**
+     * @return {@code files} in this order, a view backed by {@code files}
+     */
+    public List<FileToCopy> sort(List<FileToCopy> files) {
+        IntBinaryOperator comparator = comparator(files);
+        if (comparator == null)
+            return files;
+        int[] order = new int[files.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Utils.sortIndices(order, comparator); // stable, ties stay in scan order
+        return new Permuted(files, order);
+    }
+
+    /**
+     * @return comparator of indices into {@code files}, {@code null} to keep them as they are
+     */
+    abstract IntBinaryOperator comparator(List<FileToCopy> files);
+
+    private static long inode(File file) {
+        try {
+            Object ino = Files.getAttribute(file.toPath(), "unix:ino");
+            return ino instanceof Long ? (Long) ino : 0;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return 0; // no inodes on this platform, keep scan order (sort is stable)
+        }
+    }
+
+    private static final class Permuted extends AbstractList<FileToCopy> implements RandomAccess {
+        private final List<FileToCopy> files;
+        private final int[] order;
+
+        Permuted(List<FileToCopy> files, int[] order) {
+            this.files = files;
+            this.order = order;
+        }
+
+        @Override
+        public FileToCopy get(int index) {
+            return files.get(order[index]);
+        }
+
+        @Override
+        public int size() {
+            return order.length;
+        }
+    }
+}
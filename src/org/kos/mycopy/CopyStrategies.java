@@ -6,8 +6,6 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 
 public class CopyStrategies {
     public static CopyStrategy MOD_TIME_STRATEGY =
@@ -38,17 +36,13 @@ public class CopyStrategies {
         } else return true;
     };
 
+    // hashes are computed by the calling thread: it already is a pool thread, and waiting on tasks submitted to
+    // the same pool deadlocks once every pool thread is doing the same
     public static CopyStrategy HASH_STRATEGY = (src, dst, e) -> {
         if (src.exists() && dst.exists()) {
-            Future<byte[]> f1 = e.submit(() -> Utils.hash(src, "SHA-256"));
-            Future<byte[]> f2 = e.submit(() -> Utils.hash(dst, "SHA-256"));
-
             try {
-                return !Arrays.equals(f1.get(), f2.get());
-            } catch (InterruptedException e1) {
-                Thread.currentThread().interrupt();
-                return false;
-            } catch (ExecutionException e1) {
+                return !Arrays.equals(HashCache.hash(src, "SHA-256"), HashCache.hash(dst, "SHA-256"));
+            } catch (IOException e1) {
                 e1.printStackTrace();
                 return false;
             }
@@ -0,0 +1,76 @@
+package org.kos.mycopy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Destination directories known to exist, shared by all copying threads so that a directory is checked or created
+ * once per job rather than once per file.
+ * <p>
+ * {@link #createAll(Collection, ExecutorService)} builds the whole destination skeleton up front, one depth level at
+ * a time with the directories of a level created in parallel. Every directory then costs a single {@code mkdir}, its
+ * parent being known to exist.
+ */
+public class CreatedDirectories {
+    private final Set<File> known = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Makes sure {@code dir} exists, creating it with its parents if needed.
+     *
+     * @return {@code false} if it can't be created
+     */
+    public boolean ensure(File dir) {
+        if (known.contains(dir))
+            return true;
+        // double check cause other threads might be creating it at the same time
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+            return false;
+        known.add(dir);
+        return true;
+    }
+
+    /**
+     * Creates {@code dirs} along with their missing ancestors. Directories which can't be created are left for
+     * {@link #ensure(File)} to report.
+     */
+    public void createAll(Collection<File> dirs, ExecutorService executor) {
+        // depth -> directories, ancestors included
+        TreeMap<Integer, List<File>> levels = new TreeMap<>();
+        Set<File> seen = new HashSet<>();
+        for (File dir : dirs) {
+            for (File d = dir; d != null && !known.contains(d) && seen.add(d); d = d.getParentFile())
+                levels.computeIfAbsent(depth(d), k -> new ArrayList<>()).add(d);
+        }
+
+        for (List<File> level : levels.values()) {
+            if (Thread.currentThread().isInterrupted())
+                return;
+            List<Future<?>> futures = new ArrayList<>(level.size());
+            for (File dir : level) {
+                futures.add(executor.submit(() -> {
+                    if (dir.mkdir() || dir.isDirectory())
+                        known.add(dir);
+                }));
+            }
+            for (Future<?> future : futures)
+                Utils.getFuture(future);
+        }
+    }
+
+    private static int depth(File dir) {
+        String path = dir.getAbsolutePath();
+        int depth = 0;
+        for (int i = 0; i < path.length(); i++)
+            if (path.charAt(i) == File.separatorChar)
+                depth++;
+        return depth;
+    }
+}
@@ -0,0 +1,209 @@
+package org.kos.mycopy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Finds byte-identical files among the files to copy, so that only one of them is copied and the rest are hard
+ * linked to it on the destination.
+ * <p>
+ * Candidates are narrowed down in three steps, each only among the survivors of the previous one: same size,
+ * same hash of the first and last {@link #PARTIAL_HASH_BYTES}, same full hash (cached in {@link HashCache}). Files
+ * are grouped by sorting their indices by size, two {@code int}s per file of at least the minimum size, and file
+ * objects and hashes exist for one same-size group at a time. A {@link FileTable} is filtered in place.
+ */
+public class Deduplicator {
+    public static final int PARTIAL_HASH_BYTES = 64 * 1024;
+    private static final String HASH_ALGO = "SHA-256";
+
+    private final long minSize;
+    private final ExecutorService executor;
+    private final StatusListener statusListener;
+
+    private final List<Utils.Pair<File, File>> links = new ArrayList<>();
+    private long bytesSaved;
+
+    /**
+     * @param minSize smaller files are not worth checking
+     */
+    public Deduplicator(long minSize, ExecutorService executor, StatusListener statusListener) {
+        this.minSize = Math.max(1, minSize);
+        this.executor = executor;
+        this.statusListener = statusListener;
+    }
+
+    /**
+     * @return pairs of (duplicate destination, representative destination) found by the last
+     * {@link #deduplicate(List)}
+     */
+    public List<Utils.Pair<File, File>> getLinks() {
+        return links;
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    /**
+     * @return {@code files} without duplicates, in the original order
+     */
+    public List<FileToCopy> deduplicate(List<FileToCopy> files) {
+        links.clear();
+        bytesSaved = 0;
+
+        FileTable table = files instanceof FileTable ? (FileTable) files : null;
+        IntToLongFunction size = table != null ? table::getSize : i -> files.get(i).getSourceBytes();
+        int count = 0;
+        for (int i = 0; i < files.size(); i++)
+            if (size.applyAsLong(i) >= minSize)
+                count++;
+        int[] bySize = new int[count];
+        for (int i = 0, n = 0; n < count; i++)
+            if (size.applyAsLong(i) >= minSize)
+                bySize[n++] = i;
+        // stable, so the first scanned file of a group is the one copied
+        Utils.sortIndices(bySize, (a, b) -> Long.compare(size.applyAsLong(a), size.applyAsLong(b)));
+
+        BitSet duplicates = new BitSet(files.size());
+        int groupStart = 0;
+        while (groupStart < count && !Thread.currentThread().isInterrupted()) {
+            long groupSize = size.applyAsLong(bySize[groupStart]);
+            int groupEnd = groupStart + 1;
+            while (groupEnd < count && size.applyAsLong(bySize[groupEnd]) == groupSize)
+                groupEnd++;
+
+            if (groupEnd - groupStart > 1) {
+                statusListener.status(String.format("Looking for duplicates of %s files",
+                        Utils.bytesToHumanReadable(groupSize)));
+                List<Candidate> group = new ArrayList<>(groupEnd - groupStart);
+                for (int i = groupStart; i < groupEnd; i++)
+                    group.add(new Candidate(bySize[i], files.get(bySize[i])));
+                for (List<Candidate> candidates : groupBy(group, true))
+                    for (List<Candidate> same : groupBy(candidates, false))
+                        addDuplicates(same, duplicates);
+            }
+            groupStart = groupEnd;
+        }
+
+        if (duplicates.isEmpty())
+            return files;
+
+        BitSet keep = new BitSet(files.size());
+        keep.set(0, files.size());
+        keep.andNot(duplicates);
+        if (table != null) {
+            table.retain(keep);
+            return table;
+        }
+        List<FileToCopy> res = new ArrayList<>(keep.cardinality());
+        for (int i = keep.nextSetBit(0); i >= 0; i = keep.nextSetBit(i + 1))
+            res.add(files.get(i));
+        return res;
+    }
+
+    private void addDuplicates(List<Candidate> same, BitSet duplicates) {
+        FileToCopy representative = same.get(0).file;
+        for (int i = 1; i < same.size(); i++) {
+            Candidate duplicate = same.get(i);
+            duplicates.set(duplicate.index);
+            links.add(new Utils.Pair<>(duplicate.file.getDestination(), representative.getDestination()));
+            bytesSaved += duplicate.file.getSourceBytes();
+        }
+    }
+
+    /**
+     * @return groups of two or more files with equal (partial or full) hashes
+     */
+    private List<List<Candidate>> groupBy(List<Candidate> files, boolean partial) {
+        if (files.size() < 2)
+            return new ArrayList<>();
+
+        List<Future<byte[]>> hashes = new ArrayList<>(files.size());
+        for (Candidate file : files) {
+            File src = file.file.getSource();
+            hashes.add(executor.submit(() -> partial ? partialHash(src) : HashCache.hash(src, HASH_ALGO)));
+        }
+
+        Map<HashKey, List<Candidate>> groups = new HashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            byte[] hash = Utils.getFuture(hashes.get(i));
+            if (hash != null) // unreadable: will be copied and reported as usual
+                groups.computeIfAbsent(new HashKey(hash), k -> new ArrayList<>()).add(files.get(i));
+        }
+
+        List<List<Candidate>> res = new ArrayList<>();
+        for (List<Candidate> group : groups.values())
+            if (group.size() > 1)
+                res.add(group);
+        return res;
+    }
+
+    private static byte[] partialHash(File file) throws IOException {
+        try (FileChannel fc = new FileInputStream(file).getChannel()) {
+            MessageDigest md = MessageDigest.getInstance(HASH_ALGO);
+            long length = fc.size();
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(PARTIAL_HASH_BYTES, length));
+            readFully(fc, buf, 0);
+            md.update(buf.array(), 0, buf.position());
+            if (length > PARTIAL_HASH_BYTES) {
+                buf.clear();
+                readFully(fc, buf, Math.max(PARTIAL_HASH_BYTES, length - PARTIAL_HASH_BYTES));
+                md.update(buf.array(), 0, buf.position());
+            }
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported Hash Algorithm.", e);
+        }
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = fc.read(buf, position + buf.position());
+            if (read <= 0)
+                break;
+        }
+    }
+
+    // file with its index in the list being deduplicated
+    private static final class Candidate {
+        final int index;
+        final FileToCopy file;
+
+        Candidate(int index, FileToCopy file) {
+            this.index = index;
+            this.file = file;
+        }
+    }
+
+    private static final class HashKey {
+        private final byte[] hash;
+
+        HashKey(byte[] hash) {
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof HashKey && Arrays.equals(hash, ((HashKey) o).hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(hash);
+        }
+    }
+}
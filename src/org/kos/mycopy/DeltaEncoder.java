@@ -0,0 +1,154 @@
+package org.kos.mycopy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Describes a new version of a file in terms of the receiver's old version, given its {@link BlockSignature}: a
+ * window of a block size slides over the new data a byte at a time, and wherever its rolling checksum and digest
+ * match an old block, the block is referenced instead of sent. Everything between matches is sent as literal data.
+ * Inserted or removed bytes cost only the blocks they touch, unlike comparing blocks at fixed offsets.
+ */
+public class DeltaEncoder {
+    private static final int MIN_BUFFER_SIZE = 1024 * 1024;
+
+    private final BlockSignature signature;
+    private final int literalChunkSize;
+    private final MessageDigest digest = BlockSignature.newDigest();
+
+    /**
+     * Receives the encoded file in order.
+     */
+    public interface Sink {
+        void literal(byte[] buf, int offset, int length) throws IOException;
+
+        /**
+         * {@code count} consecutive old blocks starting with {@code first}.
+         */
+        void blocks(int first, int count, long bytes) throws IOException;
+    }
+
+    /**
+     * @param literalChunkSize literal data is passed on in pieces of at most this size
+     */
+    public DeltaEncoder(BlockSignature signature, int literalChunkSize) {
+        this.signature = signature;
+        this.literalChunkSize = literalChunkSize;
+    }
+
+    /**
+     * Encodes up to {@code size} bytes of {@code in}.
+     *
+     * @return bytes encoded, less than {@code size} if {@code in} ended early
+     */
+    public long encode(InputStream in, long size, Sink sink) throws IOException {
+        int blockSize = signature.getBlockSize();
+        byte[] buf = new byte[Math.max(MIN_BUFFER_SIZE, 4 * blockSize)];
+        RollingChecksum checksum = new RollingChecksum(blockSize);
+        long remaining = size;
+        boolean eof = false;
+        int start = 0;    // window start
+        int end = 0;      // end of data in buf
+        int literal = 0;  // start of literal data not passed on yet
+        boolean rolling = false;
+        int runFirst = -1;
+        int runCount = 0;
+
+        while (true) {
+            if (end - start <= blockSize && !eof) {
+                // refill, keeping the window
+                if (start > literal) {
+                    flushRun(sink, runFirst, runCount);
+                    runFirst = -1;
+                    literal(sink, buf, literal, start - literal);
+                }
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+                literal = 0;
+                while (end < buf.length && remaining > 0) {
+                    int n = in.read(buf, end, (int) Math.min(buf.length - end, remaining));
+                    if (n < 0)
+                        break;
+                    end += n;
+                    remaining -= n;
+                }
+                eof = remaining == 0 || end < buf.length;
+                continue;
+            }
+            if (end - start < blockSize)
+                break;
+
+            if (!rolling) {
+                checksum.reset(buf, start);
+                rolling = true;
+            }
+            int preferred = runFirst < 0 ? -1 : runFirst + runCount;
+            int block = signature.find(checksum.value(), buf, start, blockSize, preferred, digest);
+            if (block >= 0) {
+                if (start > literal || (runFirst >= 0 && block != preferred)) {
+                    flushRun(sink, runFirst, runCount);
+                    runFirst = -1;
+                }
+                if (start > literal)
+                    literal(sink, buf, literal, start - literal);
+                if (runFirst < 0) {
+                    runFirst = block;
+                    runCount = 0;
+                }
+                runCount++;
+                start += blockSize;
+                literal = start;
+                rolling = false;
+            } else if (start + blockSize < end) {
+                checksum.roll(buf[start], buf[start + blockSize]);
+                start++;
+                if (start - literal >= literalChunkSize) {
+                    flushRun(sink, runFirst, runCount);
+                    runFirst = -1;
+                    literal(sink, buf, literal, start - literal);
+                    literal = start;
+                }
+            } else {
+                break; // last full window, no more data
+            }
+        }
+
+        // the tail may be the old file's last, shorter, block
+        int tail = end - literal;
+        int last = signature.getBlockCount() - 1;
+        if (tail > 0 && last >= 0 && tail < blockSize && signature.blockLength(last) == tail &&
+                signature.find(RollingChecksum.of(buf, literal, tail), buf, literal, tail, last, digest) == last) {
+            if (runFirst >= 0 && runFirst + runCount != last) {
+                flushRun(sink, runFirst, runCount);
+                runFirst = -1;
+            }
+            if (runFirst < 0) {
+                runFirst = last;
+                runCount = 0;
+            }
+            runCount++;
+            literal = end;
+        }
+        if (end > literal) {
+            flushRun(sink, runFirst, runCount);
+            runFirst = -1;
+            literal(sink, buf, literal, end - literal);
+        }
+        flushRun(sink, runFirst, runCount);
+        return size - remaining;
+    }
+
+    private void flushRun(Sink sink, int first, int count) throws IOException {
+        if (first < 0)
+            return;
+        long bytes = (long) (count - 1) * signature.getBlockSize() + signature.blockLength(first + count - 1);
+        sink.blocks(first, count, bytes);
+    }
+
+    private void literal(Sink sink, byte[] buf, int offset, int length) throws IOException {
+        for (int done = 0; done < length; done += literalChunkSize)
+            sink.literal(buf, offset + done, Math.min(literalChunkSize, length - done));
+    }
+}
@@ -0,0 +1,247 @@
+package org.kos.mycopy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Limits the number of files being read from and written to every physical device at the same time.
+ * <p>
+ * Non-rotational devices get independent read and write limits. Rotational devices get a single permit shared
+ * by readers and writers, so copying within one spindle is serialized instead of turning into a seek storm,
+ * while copying between two different spindles still reads and writes in parallel.
+ */
+public class DeviceScheduler {
+    private static final File SYS_BLOCK = new File("/sys/block");
+    private static final File SYS_CLASS_BLOCK = new File("/sys/class/block");
+
+    private final int readLimit;
+    private final int writeLimit;
+
+    // block device (or file store name if unknown) -> device, partitions of the same disk share one device
+    private final ConcurrentMap<String, Device> devices = new ConcurrentHashMap<>();
+    // directory path -> device, to avoid looking up the file store (which scans mount table) for every file
+    private final ConcurrentMap<String, Device> directoryDevices = new ConcurrentHashMap<>();
+    private final AtomicInteger deviceIds = new AtomicInteger();
+
+    public DeviceScheduler(int readLimit, int writeLimit) {
+        this.readLimit = Math.max(1, readLimit);
+        this.writeLimit = Math.max(1, writeLimit);
+    }
+
+    /**
+     * Blocks until {@code source} can be read and {@code destination} can be written.
+     *
+     * @return ticket to be passed to {@link #release(Ticket)}
+     * @throws InterruptedException if interrupted while waiting, no permits are held in this case
+     */
+    public Ticket acquire(File source, File destination) throws InterruptedException {
+        return acquire(source, Collections.singletonList(destination));
+    }
+
+    /**
+     * Blocks until {@code source} can be read and every one of {@code destinations} can be written. Several
+     * destinations on one device take a single write permit of it, they are written by the same thread.
+     *
+     * @return ticket to be passed to {@link #release(Ticket)}
+     * @throws InterruptedException if interrupted while waiting, no permits are held in this case
+     */
+    public Ticket acquire(File source, List<File> destinations) throws InterruptedException {
+        Device src = deviceOf(source);
+        Set<Device> dsts = new LinkedHashSet<>();
+        for (File destination : destinations)
+            dsts.add(deviceOf(destination));
+
+        List<Permit> permits = new ArrayList<>(dsts.size() + 1);
+        permits.add(new Permit(src, false));
+        for (Device dst : dsts) {
+            // a rotational device's single permit covers reading and writing it
+            if (dst != src || !dst.rotational)
+                permits.add(new Permit(dst, true));
+        }
+        String devices = dsts.size() == 1 && dsts.contains(src) ? src.name : src.name + " -> " +
+                dsts.stream().map(d -> d.name).collect(Collectors.joining(", "));
+
+        // always acquire in the same order, by device and reads before writes, to avoid deadlocks between workers
+        // copying in opposite directions
+        permits.sort(Comparator.<Permit>comparingInt(p -> p.device.id).thenComparing(p -> p.write));
+        Semaphore[] acquired = new Semaphore[permits.size()];
+        for (int i = 0; i < acquired.length; i++) {
+            Permit permit = permits.get(i);
+            Semaphore semaphore = permit.write ? permit.device.writePermits : permit.device.readPermits;
+            try {
+                semaphore.acquire();
+            } catch (InterruptedException e) {
+                for (int j = i - 1; j >= 0; j--)
+                    acquired[j].release();
+                throw e;
+            }
+            acquired[i] = semaphore;
+        }
+        return new Ticket(acquired, devices);
+    }
+
+    /**
+     * Blocks until {@code source} can be read, for reads not followed by a write.
+     *
+     * @return ticket to be passed to {@link #release(Ticket)}
+     */
+    public Ticket acquireRead(File source) throws InterruptedException {
+        Device src = deviceOf(source);
+        src.readPermits.acquire();
+        return new Ticket(new Semaphore[]{src.readPermits}, src.name);
+    }
+
+    public void release(Ticket ticket) {
+        for (int i = ticket.permits.length - 1; i >= 0; i--)
+            ticket.permits[i].release();
+    }
+
+    Device deviceOf(File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir == null)
+            dir = file.getAbsoluteFile();
+        Device device = directoryDevices.get(dir.getPath());
+        if (device == null) {
+            device = lookupDevice(dir);
+            directoryDevices.putIfAbsent(dir.getPath(), device);
+        }
+        return device;
+    }
+
+    private Device lookupDevice(File dir) {
+        // destination directories may not be created yet, use nearest existing parent
+        File existing = dir;
+        while (existing != null && !existing.exists())
+            existing = existing.getParentFile();
+
+        String storeName = "";
+        if (existing != null) {
+            try {
+                FileStore store = Files.getFileStore(existing.toPath());
+                storeName = store.name();
+            } catch (IOException e) {
+                System.out.println("Can't determine device of " + existing + ": " + e.getMessage());
+            }
+        }
+
+        String blockDevice = blockDevice(storeName);
+        String key = blockDevice == null ? storeName : blockDevice;
+        Device device = devices.get(key);
+        if (device == null) {
+            boolean rotational = blockDevice != null && isRotational(blockDevice);
+            device = new Device(key, rotational);
+            Device prev = devices.putIfAbsent(key, device);
+            if (prev != null)
+                device = prev;
+            else
+                System.out.println("Device " + device + " for " + existing);
+        }
+        return device;
+    }
+
+    /**
+     * @return whole block device name like {@code sda} for a file store named {@code /dev/sda1}, or {@code null} if
+     * it can't be determined
+     */
+    private static String blockDevice(String storeName) {
+        if (!storeName.startsWith("/dev/"))
+            return null;
+
+        Path dev = Paths.get(storeName);
+        try {
+            dev = dev.toRealPath(); // resolve /dev/disk/by-uuid/... and /dev/mapper/... links
+        } catch (IOException ignored) {
+        }
+        String name = dev.getFileName().toString();
+
+        if (new File(SYS_BLOCK, name).isDirectory())
+            return name;
+
+        // partition: /sys/class/block/sda1 links to .../block/sda/sda1
+        try {
+            Path partition = new File(SYS_CLASS_BLOCK, name).toPath().toRealPath();
+            Path parent = partition.getParent();
+            if (parent != null && new File(SYS_BLOCK, parent.getFileName().toString()).isDirectory())
+                return parent.getFileName().toString();
+        } catch (IOException ignored) {
+        }
+        return null;
+    }
+
+    private static boolean isRotational(String blockDevice) {
+        File rotational = new File(SYS_BLOCK, blockDevice + "/queue/rotational");
+        try {
+            return new String(Files.readAllBytes(rotational.toPath()), StandardCharsets.US_ASCII).trim().equals("1");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static final class Permit {
+        final Device device;
+        final boolean write;
+
+        Permit(Device device, boolean write) {
+            this.device = device;
+            this.write = write;
+        }
+    }
+
+    final class Device {
+        final int id = deviceIds.incrementAndGet();
+        final String name;
+        final boolean rotational;
+        final Semaphore readPermits;
+        final Semaphore writePermits;
+
+        Device(String name, boolean rotational) {
+            this.name = name;
+            this.rotational = rotational;
+            if (rotational) {
+                readPermits = writePermits = new Semaphore(1, true);
+            } else {
+                readPermits = new Semaphore(readLimit, true);
+                writePermits = new Semaphore(writeLimit, true);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + (rotational ? " (rotational)" : "");
+        }
+    }
+
+    public static final class Ticket {
+        // in acquisition order
+        private final Semaphore[] permits;
+        private final String devices;
+
+        private Ticket(Semaphore[] permits, String devices) {
+            this.permits = permits;
+            this.devices = devices;
+        }
+
+        /**
+         * @return source and destination devices, like {@code sda -> sdb} or {@code sda -> sdb, sdc}
+         */
+        public String getDevices() {
+            return devices;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.kos.mycopy;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-directory summaries of the source tree as of the last fully successful copy to this destination, persisted
+ * in the destination root.
+ * <p>
+ * A summary is a hash over sorted (name, size, modification time) of directory children, where child directories
+ * contribute their own summaries, so it changes whenever anything in the subtree changes. A source subtree with the
+ * same summary as recorded needs no destination checks at all. Summaries describe what was copied, changes made
+ * to the destination behind MyCopy's back are not noticed.
+ */
+public class DirectorySummaries {
+    public static final String FILE_NAME = ".mycopy.summaries";
+
+    private final File file;
+    private final Map<String, String> recorded = new HashMap<>();
+    private final Map<String, String> current = new ConcurrentHashMap<>();
+
+    public DirectorySummaries(File destination) {
+        this.file = new File(destination, FILE_NAME);
+    }
+
+    /**
+     * Reads summaries recorded by the last successful run.
+     */
+    public void load() {
+        recorded.clear();
+        current.clear();
+        if (!file.exists())
+            return;
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space > 0)
+                    recorded.put(line.substring(space + 1), line.substring(0, space));
+            }
+        } catch (IOException e) {
+            System.out.println("Can't read directory summaries " + file + ": " + e.getMessage());
+            recorded.clear();
+        }
+    }
+
+    /**
+     * Records summary of a directory of the current source tree.
+     *
+     * @return whether it's the same as recorded by the last successful run
+     */
+    public boolean update(String relativePath, String summary) {
+        current.put(relativePath, summary);
+        return summary.equals(recorded.get(relativePath));
+    }
+
+    /**
+     * Replaces recorded summaries by the current ones, to be called only when every file was copied successfully.
+     */
+    public void save() {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (BufferedWriter w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, String> entry : current.entrySet()) {
+                w.write(entry.getValue());
+                w.write(' ');
+                w.write(entry.getKey());
+                w.newLine();
+            }
+        } catch (IOException e) {
+            System.out.println("Can't write directory summaries " + file + ": " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Can't write directory summaries " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.kos.mycopy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Makes renames durable by fsyncing their parent directories, merging requests which arrive close together
+ * into one group commit: while one batch is being synced, new requests pile up and the next batch syncs every
+ * directory once no matter how many files were renamed into it.
+ */
+public class DirectorySyncer {
+    // Windows can't open directories, renames are as durable as it gets there
+    private static final boolean DIRECTORIES_OPENABLE = !System.getProperty("os.name", "").startsWith("Windows");
+
+    private final Object lock = new Object();
+    private Map<File, Request> pending = new HashMap<>();
+    private boolean closed;
+    private Thread syncer;
+
+    private long batches;
+    private long requests;
+
+    public void start() {
+        synchronized (lock) {
+            closed = false;
+        }
+        syncer = new Thread(this::syncLoop, "directory syncer");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /**
+     * Blocks until {@code dir} is fsynced by a group commit started after this call.
+     *
+     * @throws IOException if the directory couldn't be synced, renames into it may not survive a crash then
+     */
+    public void sync(File dir) throws IOException, InterruptedException {
+        Request request;
+        synchronized (lock) {
+            if (closed) {
+                syncDirectory(dir);
+                return;
+            }
+            request = pending.computeIfAbsent(dir, d -> new Request());
+            request.waiters++;
+            lock.notifyAll();
+        }
+        request.done.await();
+        if (request.failure != null)
+            throw new IOException("Can't sync directory " + dir + ": " + request.failure.getMessage(),
+                    request.failure);
+    }
+
+    public void stop() {
+        if (syncer == null)
+            return; // never started, e.g. nothing to copy
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            syncer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (requests > 0)
+            System.out.println(String.format("%d directory syncs merged into %d group commits", requests, batches));
+    }
+
+    private void syncLoop() {
+        while (true) {
+            Map<File, Request> batch;
+            synchronized (lock) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty())
+                    return;
+                batch = pending;
+                pending = new HashMap<>();
+            }
+
+            batches++;
+            for (Map.Entry<File, Request> entry : batch.entrySet()) {
+                Request request = entry.getValue();
+                try {
+                    syncDirectory(entry.getKey());
+                } catch (IOException e) {
+                    request.failure = e;
+                }
+                requests += request.waiters;
+                request.done.countDown();
+            }
+        }
+    }
+
+    static void syncDirectory(File dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            if (!DIRECTORIES_OPENABLE)
+                return;
+            throw e;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Files waiting for one directory to be synced by the next group commit.
+     */
+    private static final class Request {
+        final CountDownLatch done = new CountDownLatch(1);
+        int waiters; // guarded by lock
+        volatile IOException failure;
+    }
+}
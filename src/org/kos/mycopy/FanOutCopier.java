@@ -0,0 +1,210 @@
+package org.kos.mycopy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies a file to several destinations reading it once: every chunk is read into a pooled buffer which is then
+ * written to all destinations in parallel, one writer thread per destination.
+ * <p>
+ * A buffer goes back to the pool once every destination has written it, and each copying thread has
+ * {@link #BUFFERS} of them. So a slow destination lets the others run ahead by at most {@code BUFFERS} chunks, after
+ * that reading waits for it. A destination failing to write is dropped while the others go on.
+ */
+public class FanOutCopier {
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    public static final int BUFFERS = 8;
+
+    private static final Chunk END = new Chunk(null, 0, 0, null);
+
+    private static final ThreadLocal<BlockingQueue<ByteBuffer>> pools = ThreadLocal.withInitial(() -> {
+        BlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>(BUFFERS);
+        for (int i = 0; i < BUFFERS; i++)
+            pool.add(ByteBuffer.allocateDirect(CHUNK_SIZE));
+        return pool;
+    });
+
+    private final ExecutorService writers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "MyCopy writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * Called by the reading thread around every chunk, to throttle and report progress.
+     */
+    public interface ChunkListener {
+        void beforeRead(long bytes);
+
+        void afterRead(long bytes, long nanos);
+    }
+
+    /**
+     * Copies {@code length} bytes of {@code in} to every channel of {@code outs}. Stops early if the calling thread
+     * is interrupted or the source turns out to be shorter, chunks already read are still written.
+     *
+     * @param failures filled with the write failure of every destination, {@code null} for successful ones
+     * @return bytes read, written to every destination without a failure
+     */
+    public long copy(FileChannel in, long length, List<FileChannel> outs, IOException[] failures,
+                     ChunkListener listener) throws IOException {
+        BlockingQueue<ByteBuffer> pool = pools.get();
+        // a destination never has more than every buffer and the end marker queued, so adding never blocks
+        List<BlockingQueue<Chunk>> queues = new ArrayList<>(outs.size());
+        CountDownLatch finished = new CountDownLatch(outs.size());
+        for (int i = 0; i < outs.size(); i++) {
+            BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(BUFFERS + 1);
+            queues.add(queue);
+            int destination = i;
+            writers.execute(() -> {
+                try {
+                    write(queue, outs.get(destination), failures, destination);
+                } finally {
+                    finished.countDown();
+                }
+            });
+        }
+
+        long position = 0;
+        try {
+            while (position < length && !Thread.currentThread().isInterrupted()) {
+                ByteBuffer buffer;
+                try {
+                    buffer = pool.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(CHUNK_SIZE, length - position));
+                listener.beforeRead(buffer.remaining());
+                long started = System.nanoTime();
+                int read;
+                try {
+                    read = readFully(in, buffer, position);
+                } catch (IOException e) {
+                    pool.add(buffer);
+                    throw e;
+                }
+                if (read == 0) {
+                    pool.add(buffer);
+                    break; // source got shorter
+                }
+                buffer.flip();
+                Chunk chunk = new Chunk(buffer, position, queues.size(), pool);
+                for (BlockingQueue<Chunk> queue : queues)
+                    queue.add(chunk);
+                position += read;
+                bytesRead.addAndGet(read);
+                listener.afterRead(read, System.nanoTime() - started);
+            }
+        } finally {
+            for (BlockingQueue<Chunk> queue : queues)
+                queue.add(END);
+            awaitUninterruptibly(finished);
+        }
+        return position;
+    }
+
+    /**
+     * Stops writer threads, to be called once no more files are copied.
+     */
+    public void stop() {
+        writers.shutdown();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return bytes written to all destinations together
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    private void write(BlockingQueue<Chunk> queue, FileChannel out, IOException[] failures, int destination) {
+        while (true) {
+            Chunk chunk;
+            try {
+                chunk = queue.take();
+            } catch (InterruptedException e) {
+                continue; // not expected, stop() lets writers finish, and the reader waits for every chunk
+            }
+            if (chunk == END)
+                return;
+            try {
+                // after a failure the chunks are only passed on to the pool
+                if (failures[destination] == null) {
+                    ByteBuffer data = chunk.buffer.duplicate();
+                    long position = chunk.position;
+                    while (data.hasRemaining())
+                        position += out.write(data, position);
+                    bytesWritten.addAndGet(chunk.buffer.remaining());
+                }
+            } catch (IOException e) {
+                failures[destination] = e;
+            } finally {
+                chunk.release();
+            }
+        }
+    }
+
+    private static int readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        int read = 0;
+        while (buffer.hasRemaining()) {
+            int n = in.read(buffer, position + read);
+            if (n <= 0)
+                break;
+            read += n;
+        }
+        return read;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private static final class Chunk {
+        final ByteBuffer buffer;
+        final long position;
+        final AtomicInteger pending;
+        final BlockingQueue<ByteBuffer> pool;
+
+        Chunk(ByteBuffer buffer, long position, int destinations, BlockingQueue<ByteBuffer> pool) {
+            this.buffer = buffer;
+            this.position = position;
+            this.pending = new AtomicInteger(destinations);
+            this.pool = pool;
+        }
+
+        void release() {
+            if (pending.decrementAndGet() == 0)
+                pool.add(buffer);
+        }
+    }
+}
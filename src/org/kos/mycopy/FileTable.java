@@ -0,0 +1,380 @@
+package org.kos.mycopy;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Compact list of scanned files for jobs with tens of millions of entries.
+ * <p>
+ * Instead of a {@link FileToCopy} with two absolute path strings per file, files are kept as columns of primitive
+ * arrays: parent directory index, name index, size and modification time. Directories form a tree of (parent, name)
+ * entries and names are shared through a pool, so a name like {@code index.html} is stored once no matter how many
+ * directories contain it. Source and destination paths are derived from the same relative entry and are only built
+ * when {@link #get(int)} is called.
+ * <p>
+ * Given a spill directory, files beyond {@code maxFilesInMemory} move to {@link MappedSegments} as fixed size records
+ * with their names alongside, so heap use doesn't grow with the number of files (directories stay on heap). Readers
+ * are expected to go through the table sequentially, which is what the page cache is good at.
+ * <p>
+ * Not thread-safe for modification, meant to be filled by one scanning thread and read afterwards.
+ */
+public class FileTable extends AbstractList<FileToCopy> implements RandomAccess {
+    /**
+     * Index of the directory corresponding to the source and destination roots.
+     */
+    public static final int ROOT = 0;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    // directory, name length, name position, size, modification time
+    private static final int RECORD_SIZE = 4 + 4 + 8 + 8 + 8;
+
+    private final File sourceRoot;
+    private final File destinationRoot;
+    private final File spillDirectory;
+    private final int maxFilesInMemory;
+    private MappedSegments spilledRecords;
+    private MappedSegments spilledNames;
+
+    private final Map<String, Integer> nameIds = new HashMap<>();
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int nameCount;
+
+    private int[] dirParents = new int[INITIAL_CAPACITY];
+    private int[] dirNames = new int[INITIAL_CAPACITY];
+    private int dirCount;
+
+    private int[] fileDirs = new int[INITIAL_CAPACITY];
+    private int[] fileNames = new int[INITIAL_CAPACITY];
+    private long[] sizes = new long[INITIAL_CAPACITY];
+    private long[] mtimes = new long[INITIAL_CAPACITY];
+    private int fileCount;
+
+    // consecutive get() calls mostly hit the same directory
+    private volatile DirPaths lastDirPaths;
+
+    public FileTable(File sourceRoot, File destinationRoot) {
+        this(sourceRoot, destinationRoot, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param spillDirectory   where to put files beyond {@code maxFilesInMemory}, {@code null} to keep all on heap
+     */
+    public FileTable(File sourceRoot, File destinationRoot, File spillDirectory, int maxFilesInMemory) {
+        this.sourceRoot = sourceRoot;
+        this.destinationRoot = destinationRoot;
+        this.spillDirectory = spillDirectory;
+        this.maxFilesInMemory = maxFilesInMemory;
+        dirParents[0] = -1;
+        dirNames[0] = nameId("");
+        dirCount = 1;
+    }
+
+    /**
+     * @return index of the new directory
+     */
+    public int addDirectory(int parent, String name) {
+        if (dirCount == dirParents.length) {
+            dirParents = Arrays.copyOf(dirParents, grow(dirCount));
+            dirNames = Arrays.copyOf(dirNames, dirParents.length);
+        }
+        dirParents[dirCount] = parent;
+        dirNames[dirCount] = nameId(name);
+        return dirCount++;
+    }
+
+    public void add(int directory, String name, long size, long lastModified) {
+        if (spilledRecords == null && spillDirectory != null && fileCount >= maxFilesInMemory)
+            spill();
+        if (spilledRecords != null) {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            long namePosition = spilledNames.allocate(nameBytes.length);
+            spilledNames.put(namePosition, nameBytes);
+            spilledRecords.allocate(RECORD_SIZE);
+            putRecord(fileCount, directory, nameBytes.length, namePosition, size, lastModified);
+            fileCount++;
+            modCount++;
+            return;
+        }
+
+        if (fileCount == sizes.length) {
+            int capacity = grow(fileCount);
+            fileDirs = Arrays.copyOf(fileDirs, capacity);
+            fileNames = Arrays.copyOf(fileNames, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            mtimes = Arrays.copyOf(mtimes, capacity);
+        }
+        fileDirs[fileCount] = directory;
+        fileNames[fileCount] = nameId(name);
+        sizes[fileCount] = size;
+        mtimes[fileCount] = lastModified;
+        fileCount++;
+        modCount++;
+    }
+
+    public int directoryCount() {
+        return dirCount;
+    }
+
+    public boolean isSpilled() {
+        return spilledRecords != null;
+    }
+
+    @Override
+    public FileToCopy get(int index) {
+        checkIndex(index);
+        DirPaths dir = dirPaths(fileDir(index));
+        String name = fileName(index);
+        return new FileToCopy(new File(dir.source, name), new File(dir.destination, name), fileSize(index));
+    }
+
+    public long getSize(int index) {
+        checkIndex(index);
+        return fileSize(index);
+    }
+
+    public long getLastModified(int index) {
+        checkIndex(index);
+        return spilledRecords == null ? mtimes[index] : record(index).getLong(recordOffset(index) + 24);
+    }
+
+    /**
+     * @return index of the file's directory, as returned by {@link #addDirectory(int, String)}
+     */
+    public int getDirectory(int index) {
+        checkIndex(index);
+        return fileDir(index);
+    }
+
+    public String getName(int index) {
+        checkIndex(index);
+        return fileName(index);
+    }
+
+    /**
+     * @return path of the directory relative to the source and destination roots, separated by {@code /}
+     */
+    public String getDirectoryPath(int directory) {
+        StringBuilder sb = new StringBuilder();
+        appendDirPath(sb, directory);
+        return sb.toString();
+    }
+
+    /**
+     * @return path of the file relative to the source and destination roots, separated by {@code /}
+     */
+    public String getRelativePath(int index) {
+        checkIndex(index);
+        StringBuilder sb = new StringBuilder();
+        appendDirPath(sb, fileDir(index));
+        if (sb.length() > 0)
+            sb.append('/');
+        return sb.append(fileName(index)).toString();
+    }
+
+    @Override
+    public int size() {
+        return fileCount;
+    }
+
+    /**
+     * Drops files and directories added after the table had the given sizes, used to forget a subtree.
+     */
+    public void truncate(int files, int directories) {
+        if (files < fileCount) {
+            if (spilledRecords != null) {
+                // names were appended in file order
+                spilledNames.truncate(record(files).getLong(recordOffset(files) + 8));
+                spilledRecords.truncate((long) files * RECORD_SIZE);
+            }
+            fileCount = files;
+            modCount++;
+        }
+        if (directories < dirCount) {
+            dirCount = Math.max(1, directories);
+            lastDirPaths = null;
+        }
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        if (toIndex != fileCount)
+            throw new UnsupportedOperationException("Only the tail of a file table can be removed");
+        truncate(fromIndex, dirCount);
+    }
+
+    /**
+     * Keeps only files whose indices are set in {@code keep}, in the same order.
+     */
+    public void retain(BitSet keep) {
+        int n = 0;
+        for (int i = keep.nextSetBit(0); i >= 0 && i < fileCount; i = keep.nextSetBit(i + 1)) {
+            if (spilledRecords != null) {
+                // names of dropped files are not reclaimed
+                ByteBuffer record = record(i);
+                int offset = recordOffset(i);
+                putRecord(n++, record.getInt(offset), record.getInt(offset + 4), record.getLong(offset + 8),
+                        record.getLong(offset + 16), record.getLong(offset + 24));
+                continue;
+            }
+            fileDirs[n] = fileDirs[i];
+            fileNames[n] = fileNames[i];
+            sizes[n] = sizes[i];
+            mtimes[n] = mtimes[i];
+            n++;
+        }
+        if (spilledRecords != null)
+            spilledRecords.truncate((long) n * RECORD_SIZE);
+        fileCount = n;
+        modCount++;
+    }
+
+    /**
+     * Drops the name lookup table and spare capacity once nothing more is going to be added.
+     */
+    public void trimToSize() {
+        nameIds.clear();
+        names = Arrays.copyOf(names, nameCount);
+        dirParents = Arrays.copyOf(dirParents, dirCount);
+        dirNames = Arrays.copyOf(dirNames, dirCount);
+        if (spilledRecords != null)
+            return;
+        fileDirs = Arrays.copyOf(fileDirs, fileCount);
+        fileNames = Arrays.copyOf(fileNames, fileCount);
+        sizes = Arrays.copyOf(sizes, fileCount);
+        mtimes = Arrays.copyOf(mtimes, fileCount);
+    }
+
+    /**
+     * @return bytes of file records and names moved out of the heap
+     */
+    public long spilledBytes() {
+        return spilledRecords == null ? 0 : spilledRecords.length() + spilledNames.length();
+    }
+
+    /**
+     * @return approximate heap used by the table, in bytes
+     */
+    public long memoryFootprint() {
+        long bytes = 4L * (dirParents.length + dirNames.length + fileDirs.length + fileNames.length)
+                + 8L * (sizes.length + mtimes.length) + 4L * names.length;
+        for (int i = 0; i < nameCount; i++)
+            bytes += 40 + 2L * names[i].length(); // String with its char array
+        if (!nameIds.isEmpty())
+            bytes += 48L * nameIds.size(); // map entries and boxed ids
+        return bytes;
+    }
+
+    private void spill() {
+        spilledRecords = new MappedSegments(spillDirectory, "mycopy-files");
+        spilledNames = new MappedSegments(spillDirectory, "mycopy-names");
+        int count = fileCount;
+        fileCount = 0;
+        for (int i = 0; i < count; i++)
+            add(fileDirs[i], names[fileNames[i]], sizes[i], mtimes[i]);
+        // names of directories are still needed
+        fileDirs = new int[0];
+        fileNames = new int[0];
+        sizes = new long[0];
+        mtimes = new long[0];
+    }
+
+    private ByteBuffer record(int index) {
+        return spilledRecords.segment((long) index * RECORD_SIZE);
+    }
+
+    private static int recordOffset(int index) {
+        return MappedSegments.offset((long) index * RECORD_SIZE);
+    }
+
+    private void putRecord(int index, int dir, int nameLength, long namePosition, long size, long lastModified) {
+        ByteBuffer record = record(index);
+        int offset = recordOffset(index);
+        record.putInt(offset, dir);
+        record.putInt(offset + 4, nameLength);
+        record.putLong(offset + 8, namePosition);
+        record.putLong(offset + 16, size);
+        record.putLong(offset + 24, lastModified);
+    }
+
+    private int fileDir(int index) {
+        return spilledRecords == null ? fileDirs[index] : record(index).getInt(recordOffset(index));
+    }
+
+    private String fileName(int index) {
+        if (spilledRecords == null)
+            return names[fileNames[index]];
+        ByteBuffer record = record(index);
+        int offset = recordOffset(index);
+        return new String(spilledNames.get(record.getLong(offset + 8), record.getInt(offset + 4)),
+                StandardCharsets.UTF_8);
+    }
+
+    private long fileSize(int index) {
+        return spilledRecords == null ? sizes[index] : record(index).getLong(recordOffset(index) + 16);
+    }
+
+    private int nameId(String name) {
+        Integer id = nameIds.get(name);
+        if (id != null)
+            return id;
+        if (nameCount == names.length)
+            names = Arrays.copyOf(names, grow(nameCount));
+        names[nameCount] = name;
+        nameIds.put(name, nameCount);
+        return nameCount++;
+    }
+
+    private DirPaths dirPaths(int dir) {
+        DirPaths last = lastDirPaths;
+        if (last != null && last.dir == dir)
+            return last;
+
+        StringBuilder sb = new StringBuilder();
+        appendDirPath(sb, dir);
+        String relative = sb.toString().replace('/', File.separatorChar);
+        DirPaths res = relative.isEmpty() ? new DirPaths(dir, sourceRoot, destinationRoot) :
+                new DirPaths(dir, new File(sourceRoot, relative), new File(destinationRoot, relative));
+        lastDirPaths = res;
+        return res;
+    }
+
+    private void appendDirPath(StringBuilder sb, int dir) {
+        if (dir == ROOT)
+            return;
+        appendDirPath(sb, dirParents[dir]);
+        String name = names[dirNames[dir]];
+        if (name.isEmpty())
+            return;
+        if (sb.length() > 0)
+            sb.append('/');
+        sb.append(name);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= fileCount)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + fileCount);
+    }
+
+    private static int grow(int size) {
+        return size + Math.max(INITIAL_CAPACITY, size >> 1);
+    }
+
+    private static final class DirPaths {
+        final int dir;
+        final File source;
+        final File destination;
+
+        DirPaths(int dir, File source, File destination) {
+            this.dir = dir;
+            this.source = source;
+            this.destination = destination;
+        }
+    }
+}
@@ -15,6 +15,12 @@ public class FileToCopy {
 //        System.out.println(source.getAbsoluteFile() + " -> " + destination.getAbsolutePath());
     }
 
+    public FileToCopy(File source, File destination, long sourceBytes) {
+        this.source = source;
+        this.destination = destination;
+        this.sourceBytes = sourceBytes;
+    }
+
     public File getSource() {
         return source;
     }
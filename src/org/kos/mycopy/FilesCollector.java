@@ -1,14 +1,35 @@
 package org.kos.mycopy;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class FilesCollector {
     private final File source;
     private final File destination;
     private final boolean copySourceItself;
     private final StatusListener statusListener;
+    private final boolean detectHardLinks;
+    private final DirectorySummaries summaries;
+    private final PathFilter pathFilter;
+    private final File spillDirectory;
+    private final int maxFilesInMemory;
+
+    // "dev:ino" -> destination of the first occurrence
+    private final Map<String, File> firstLinks = new HashMap<>();
+    // destination of extra link -> destination of the first occurrence
+    private final List<Utils.Pair<File, File>> hardLinks = new ArrayList<>();
 
     int totalFilesScanned;
     long totalBytesToCopy;
@@ -16,49 +37,173 @@ public class FilesCollector {
     public FilesCollector(File source,
                           File destination,
                           boolean copySourceItself,
-                          StatusListener statusListener) {
+                          StatusListener statusListener,
+                          boolean detectHardLinks,
+                          DirectorySummaries summaries,
+                          PathFilter pathFilter,
+                          File spillDirectory,
+                          int maxFilesInMemory) {
         this.source = source;
         this.destination = destination;
         this.copySourceItself = copySourceItself;
         this.statusListener = statusListener;
+        this.detectHardLinks = detectHardLinks;
+        this.summaries = summaries;
+        this.pathFilter = pathFilter == null || pathFilter.isEmpty() ? null : pathFilter;
+        this.spillDirectory = spillDirectory;
+        this.maxFilesInMemory = maxFilesInMemory;
+    }
+
+    /**
+     * @return extra hard links found by the last {@link #collectListOfFiles()}, as pairs of (link destination,
+     * destination of the first link to the same inode). Only first links are returned as files to copy.
+     */
+    public List<Utils.Pair<File, File>> getHardLinks() {
+        return hardLinks;
     }
 
-    public List<FileToCopy> collectListOfFiles() {
+    public FileTable collectListOfFiles() {
         totalFilesScanned = 0;
         totalBytesToCopy = 0;
+        firstLinks.clear();
+        hardLinks.clear();
 
-        List<FileToCopy> res = new ArrayList<>();
-        if (copySourceItself)
-            scan(source, destination, res);
-        else {
+        FileTable res;
+        if (copySourceItself) {
+            File sourceParent = source.getAbsoluteFile().getParentFile();
+            res = new FileTable(sourceParent == null ? source : sourceParent, destination, spillDirectory,
+                    maxFilesInMemory);
+            scan(source, destination, FileTable.ROOT, "", res, null);
+        } else {
+            res = new FileTable(source, destination, spillDirectory, maxFilesInMemory);
             File[] srcContents = source.listFiles();
             if (srcContents != null)
                 for (File s : srcContents)
-                    scan(s, destination, res);
+                    scan(s, destination, FileTable.ROOT, s.getName(), res, null);
         }
+        res.trimToSize();
         return res;
     }
 
-    private void scan(File src, File dst, List<FileToCopy> acc) {
+    /**
+     * @param dst           destination directory to copy {@code src} to
+     * @param parentDir     index of {@code dst} in {@code acc}
+     * @param relativePath  {@code src} path relative to the source, empty for the source itself
+     * @param parentSummary digest of the parent directory summary to add {@code src} to, {@code null} if summaries
+     *                      are not used or {@code src} is a top level entry
+     */
+    private void scan(File src, File dst, int parentDir, String relativePath, FileTable acc,
+                      MessageDigest parentSummary) {
         if (Thread.currentThread().isInterrupted())
             return;
 
-        File dstFile = new File(dst, src.getName());
-        if (!src.isDirectory()) {
-            acc.add(new FileToCopy(src, dstFile));
-            totalBytesToCopy += src.length();
+        // one stat for type, size and time
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(src.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            attrs = null; // e.g. dangling symlink, let copying report it
+        }
+        boolean directory = attrs != null && attrs.isDirectory();
+        String name = src.getName();
+        // excluded directories are never listed
+        if (pathFilter != null && !relativePath.isEmpty() && !pathFilter.isIncluded(relativePath, name, directory))
+            return;
+
+        if (!directory) {
+            long length = attrs == null ? 0 : attrs.size();
+            long mtime = attrs == null ? 0 : attrs.lastModifiedTime().toMillis();
+            if (parentSummary != null)
+                addToSummary(parentSummary, name, length, mtime);
+            if (detectHardLinks && isExtraHardLink(src, new File(dst, name)))
+                return;
+            acc.add(parentDir, name, length, mtime);
+            totalBytesToCopy += length;
             totalFilesScanned++;
         } else {
             File[] srcContents = src.listFiles();
-            if (srcContents != null) {
-                statusListener.status("Scanning " + src.getAbsolutePath());
-                for (File srcFile : srcContents) {
-                    scan(srcFile, dstFile, acc);
+            if (srcContents == null) {
+                if (parentSummary != null) // unreadable: make sure parent summary never matches
+                    addToSummary(parentSummary, name, -1, System.nanoTime());
+                return;
+            }
+
+            statusListener.status("Scanning " + src.getAbsolutePath());
+            File dstFile = new File(dst, name);
+            int dir = acc.addDirectory(parentDir, name);
+            MessageDigest summary = summaries == null ? null : newDigest();
+            if (summary != null) {
+                Arrays.sort(srcContents, Comparator.comparing(File::getName));
+                if (pathFilter != null) // different rules, different set of files
+                    summary.update(pathFilter.fingerprint().getBytes(StandardCharsets.UTF_8));
+            }
+            int firstFile = acc.size();
+            int firstDir = acc.directoryCount();
+            int firstHardLink = hardLinks.size();
+
+            String prefix = relativePath.isEmpty() ? "" : relativePath + '/';
+            for (File srcFile : srcContents) {
+                scan(srcFile, dstFile, dir, prefix + srcFile.getName(), acc, summary);
+            }
+
+            if (summary != null && !Thread.currentThread().isInterrupted()) {
+                String hex = toHex(summary.digest());
+                if (summaries.update(relativePath(dstFile), hex)) {
+                    // unchanged since last successful copy: nothing in this subtree needs to be checked
+                    acc.truncate(firstFile, firstDir);
+                    hardLinks.subList(firstHardLink, hardLinks.size()).clear();
                 }
+                if (parentSummary != null)
+                    addToSummary(parentSummary, name + '/' + hex, 0, 0);
             }
         }
 
 //        statusListener.status(String.format("0 of %s (%d files left)",
 //                Utils.bytesToHumanReadable(totalBytesToCopy), acc.size()));
     }
+
+    private boolean isExtraHardLink(File src, File dstFile) {
+        Map<String, Object> attrs;
+        try {
+            attrs = Files.readAttributes(src.toPath(), "unix:dev,ino,nlink");
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return false;
+        }
+        if (((Number) attrs.get("nlink")).intValue() < 2)
+            return false;
+
+        String key = attrs.get("dev") + ":" + attrs.get("ino");
+        File first = firstLinks.putIfAbsent(key, dstFile);
+        if (first == null)
+            return false;
+
+        hardLinks.add(new Utils.Pair<>(dstFile, first));
+        return true;
+    }
+
+    private String relativePath(File dstFile) {
+        String root = destination.getAbsolutePath();
+        String path = dstFile.getAbsolutePath();
+        return path.startsWith(root) ? path.substring(root.length()) : path;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported Hash Algorithm.", e);
+        }
+    }
+
+    private static void addToSummary(MessageDigest summary, String name, long size, long mtime) {
+        summary.update(name.getBytes(StandardCharsets.UTF_8));
+        summary.update(ByteBuffer.allocate(17).put((byte) 0).putLong(size).putLong(mtime).array());
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
 }
@@ -0,0 +1,83 @@
+package org.kos.mycopy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+
+/**
+ * Keeps file digests in a user extended attribute, together with size, modification time and inode the digest was
+ * computed for, so that unchanged files don't have to be read again.
+ * <p>
+ * Falls back to just computing the digest where extended attributes are not supported or not writable.
+ */
+public class HashCache {
+    private static final String ATTRIBUTE_PREFIX = "mycopy.";
+    private static final int KEY_BYTES = 3 * 8;
+
+    private static volatile boolean supported = true;
+
+    public static byte[] hash(File file, String hashAlgo) throws IOException {
+        if (!supported)
+            return Utils.hash(file, hashAlgo);
+
+        Path path = file.toPath();
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            supported = false;
+            return Utils.hash(file, hashAlgo);
+        }
+
+        String name = ATTRIBUTE_PREFIX + hashAlgo.toLowerCase();
+        long size = file.length();
+        long mtime = file.lastModified();
+        long inode = inode(path);
+
+        byte[] cached = read(view, name);
+        if (cached != null && cached.length > KEY_BYTES) {
+            ByteBuffer buf = ByteBuffer.wrap(cached);
+            if (buf.getLong() == size && buf.getLong() == mtime && buf.getLong() == inode) {
+                byte[] digest = new byte[buf.remaining()];
+                buf.get(digest);
+                return digest;
+            }
+        }
+
+        byte[] digest = Utils.hash(file, hashAlgo);
+        // don't cache if file changed while being hashed
+        if (file.length() == size && file.lastModified() == mtime) {
+            ByteBuffer buf = ByteBuffer.allocate(KEY_BYTES + digest.length);
+            buf.putLong(size).putLong(mtime).putLong(inode).put(digest).flip();
+            try {
+                view.write(name, buf);
+            } catch (IOException | SecurityException e) {
+                // read only file or file system without xattrs, still fine
+            }
+        }
+        return digest;
+    }
+
+    private static byte[] read(UserDefinedFileAttributeView view, String name) {
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(view.size(name));
+            view.read(name, buf);
+            return buf.array();
+        } catch (IOException | SecurityException e) {
+            return null; // no attribute yet
+        } catch (UnsupportedOperationException e) {
+            supported = false;
+            return null;
+        }
+    }
+
+    private static long inode(Path path) {
+        try {
+            Object ino = Files.getAttribute(path, "unix:ino");
+            return ino instanceof Long ? (Long) ino : 0;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return 0;
+        }
+    }
+}
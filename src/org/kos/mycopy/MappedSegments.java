@@ -0,0 +1,104 @@
+package org.kos.mycopy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only byte storage in memory-mapped segment files, so that data larger than the heap lives in the page
+ * cache and can be written back to disk by the kernel under memory pressure.
+ * <p>
+ * Segment files are deleted right after being mapped: the space is released once the mappings are garbage
+ * collected, and nothing is left behind if the process dies. A single allocation never crosses a segment boundary.
+ */
+public class MappedSegments {
+    public static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final File directory;
+    private final String prefix;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private long length;
+
+    public MappedSegments(File directory, String prefix) {
+        this.directory = directory;
+        this.prefix = prefix;
+    }
+
+    /**
+     * @return logical length, i.e. position of the next allocation
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Reserves {@code size} bytes, moving to the next segment if they don't fit in the current one.
+     *
+     * @return position of the reserved bytes
+     */
+    public long allocate(int size) {
+        if (size > SEGMENT_SIZE)
+            throw new IllegalArgumentException("Can't allocate " + size + " bytes in a segment");
+        long offset = length % SEGMENT_SIZE;
+        if (offset != 0 && offset + size > SEGMENT_SIZE)
+            length += SEGMENT_SIZE - offset; // leave the tail of the current segment unused
+        long position = length;
+        length += size;
+        while (segments.size() * (long) SEGMENT_SIZE < length)
+            segments.add(map(segments.size()));
+        return position;
+    }
+
+    /**
+     * Forgets everything from {@code position} on, the next allocation starts there.
+     */
+    public void truncate(long position) {
+        if (position < length)
+            length = position;
+    }
+
+    /**
+     * @return buffer of the segment containing {@code position}, to be accessed with absolute get/put methods at
+     * {@link #offset(long)}
+     */
+    public ByteBuffer segment(long position) {
+        return segments.get((int) (position / SEGMENT_SIZE));
+    }
+
+    public static int offset(long position) {
+        return (int) (position % SEGMENT_SIZE);
+    }
+
+    public void put(long position, byte[] bytes) {
+        ByteBuffer buf = segment(position).duplicate();
+        buf.position(offset(position));
+        buf.put(bytes);
+    }
+
+    public byte[] get(long position, int size) {
+        ByteBuffer buf = segment(position).duplicate();
+        buf.position(offset(position));
+        byte[] res = new byte[size];
+        buf.get(res);
+        return res;
+    }
+
+    private MappedByteBuffer map(int index) {
+        File file = new File(directory, String.format("%s-%d-%06d.seg", prefix, System.nanoTime(), index));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(SEGMENT_SIZE);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't create file list segment " + file, e);
+        } finally {
+            if (!file.delete())
+                file.deleteOnExit();
+        }
+    }
+}
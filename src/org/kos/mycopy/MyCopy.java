@@ -6,6 +6,11 @@ import java.awt.event.WindowEvent;
 
 public class MyCopy {
     public static void main(String[] args) {
+        if (args.length > 0) {
+            ConsoleUI.main(args);
+            return;
+        }
+
         UI ui = new UI();
         JFrame frame = new JFrame();
         frame.setContentPane(ui.getPanel());
@@ -929,18 +929,32 @@ public class MyLinkedList<E>
             addBefore((E) s.readObject(), header);
     }
 
+    /**
+     * Moves all elements of the specified list to the end of this list
+     * in constant time. The specified list is left empty.
+     *
+     * @param list list whose elements are to be moved to this list
+     * @return this list
+     * @throws IllegalArgumentException if the specified list is this list
+     */
     public MyLinkedList<E> concatenate(MyLinkedList<E> list) {
-        header.previous.next = list.header.next;
-        list.header.next.previous = header.previous;
-        list.header.previous.next = header.next;
-        header.next.previous = list.header.previous;
-        list.header.next = header.next;
-        header.previous = list.header.previous;
-
-        size = size + list.size;
-        modCount = modCount + list.modCount + 1;
-        list.size = size;
-        list.modCount = modCount;
+        if (list == this)
+            throw new IllegalArgumentException("Can't concatenate a list to itself");
+        if (list.size == 0)
+            return this;
+
+        Entry<E> first = list.header.next;
+        Entry<E> last = list.header.previous;
+        header.previous.next = first;
+        first.previous = header.previous;
+        last.next = header;
+        header.previous = last;
+        list.header.next = list.header.previous = list.header;
+
+        size += list.size;
+        modCount++;
+        list.size = 0;
+        list.modCount++;
 
         return this;
     }
@@ -0,0 +1,49 @@
+package org.kos.mycopy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drops copied files from the page cache, so that a large copy doesn't push out data other programs are using.
+ * <p>
+ * Java has no access to {@code posix_fadvise(2)} short of native code, so GNU {@code dd} is used where available:
+ * with {@code count=0} it copies nothing, flushes the destination ({@code conv=fdatasync}, dirty pages can't be
+ * dropped) and advises {@code POSIX_FADV_DONTNEED} for the whole source and destination. Starting a process costs
+ * more than caching a small file, so small files are left alone.
+ */
+public class PageCacheDropper {
+    public static final long MIN_FILE_SIZE = 1024 * 1024;
+    private static final String DD = "dd";
+
+    private static volatile boolean ddAvailable = !System.getProperty("os.name", "").startsWith("Windows");
+
+    /**
+     * @param source  completely copied source file
+     * @param written file the data was written to, closed
+     */
+    public static void drop(File source, File written, long length) {
+        if (!ddAvailable || length < MIN_FILE_SIZE)
+            return;
+        try {
+            Process p = new ProcessBuilder(DD, "if=" + source.getAbsolutePath(), "iflag=nocache",
+                    "of=" + written.getAbsolutePath(), "oflag=nocache", "conv=notrunc,fdatasync", "count=0",
+                    "status=none")
+                    .redirectErrorStream(true)
+                    .start();
+            p.getOutputStream().close();
+            p.getInputStream().close();
+            if (!p.waitFor(60, TimeUnit.SECONDS)) {
+                p.destroy();
+            } else if (p.exitValue() != 0) {
+                System.out.println("dd can't drop cached pages, is it GNU dd? Leaving page cache alone");
+                ddAvailable = false;
+            }
+        } catch (IOException e) {
+            System.out.println("dd is not available, leaving page cache alone");
+            ddAvailable = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.kos.mycopy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Ordered include/exclude rules, first matching rule wins, paths matching no rule are included.
+ * <p>
+ * Rule syntax: {@code + pattern} includes, {@code - pattern} excludes. Pattern is a glob unless prefixed by
+ * {@code re:}, in which case it's a regex matched against the whole relative path. Globs without a slash match
+ * file name at any depth, globs with a slash match path relative to the source ({@code /build} only at the top),
+ * {@code *} doesn't cross directories while {@code **} does, trailing slash restricts a glob to directories.
+ * <p>
+ * Rule sets grow to hundreds of entries, so rules are not tried one by one: plain names and {@code *.ext}
+ * patterns, which make up most of them, are looked up in hash tables by file name and extension. Only the
+ * remaining general patterns are matched in order, and only those before the best match found so far.
+ */
+public class PathFilter {
+    private final List<Rule> rules = new ArrayList<>();
+    // file name -> first rule with exactly this name pattern
+    private final Map<String, Rule> byName = new HashMap<>();
+    // extension including the dot -> first rule with "*.ext" pattern, ext without dots
+    private final Map<String, Rule> byExtension = new HashMap<>();
+    private final List<Rule> general = new ArrayList<>();
+
+    /**
+     * @throws IllegalArgumentException if a rule can't be parsed
+     */
+    public PathFilter(List<String> ruleLines) {
+        for (String line : ruleLines) {
+            String l = line.trim();
+            if (l.isEmpty() || l.startsWith("#"))
+                continue;
+            if (l.length() < 3 || (l.charAt(0) != '+' && l.charAt(0) != '-') || l.charAt(1) != ' ')
+                throw new IllegalArgumentException("Rule should start with '+ ' or '- ': " + line);
+            addRule(l.charAt(0) == '+', l.substring(2).trim());
+        }
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * @return string identifying the rule set, changes whenever rules do
+     */
+    public String fingerprint() {
+        StringBuilder sb = new StringBuilder();
+        for (Rule rule : rules)
+            sb.append(rule.include ? '+' : '-').append(rule.pattern).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * @param relativePath path relative to the copy source, separated by {@code /}, without leading slash
+     * @param name         last path element
+     */
+    public boolean isIncluded(String relativePath, String name, boolean directory) {
+        Rule best = null;
+        best = earliest(best, byName.get(name), directory);
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0)
+            best = earliest(best, byExtension.get(name.substring(dot)), directory);
+
+        for (Rule rule : general) {
+            if (best != null && rule.index > best.index)
+                break; // general rules are in order, nothing further can win
+            if ((directory || !rule.directoryOnly) && rule.matches(relativePath, name)) {
+                best = rule;
+                break;
+            }
+        }
+        return best == null || best.include;
+    }
+
+    private static Rule earliest(Rule best, Rule candidate, boolean directory) {
+        if (candidate == null || (candidate.directoryOnly && !directory))
+            return best;
+        return best == null || candidate.index < best.index ? candidate : best;
+    }
+
+    private void addRule(boolean include, String pattern) {
+        Rule rule;
+        if (pattern.startsWith("re:")) {
+            try {
+                rule = new Rule(rules.size(), include, pattern, false, Pattern.compile(pattern.substring(3)), false);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("Bad regex in rule: " + pattern, e);
+            }
+            rules.add(rule);
+            general.add(rule);
+            return;
+        }
+
+        String glob = pattern;
+        boolean directoryOnly = glob.endsWith("/") && glob.length() > 1;
+        if (directoryOnly)
+            glob = glob.substring(0, glob.length() - 1);
+        boolean pathPattern = glob.contains("/");
+        if (glob.startsWith("/"))
+            glob = glob.substring(1);
+
+        rule = new Rule(rules.size(), include, pattern, directoryOnly, Pattern.compile(globToRegex(glob)), !pathPattern);
+        rules.add(rule);
+
+        // a key already indexed by an earlier rule can still be matched by this one if that one is directory only
+        boolean indexed = false;
+        if (!pathPattern && !hasWildcards(glob))
+            indexed = byName.putIfAbsent(glob, rule) == null;
+        else if (!pathPattern && glob.startsWith("*.") && !hasWildcards(glob.substring(1)) &&
+                glob.indexOf('.', 2) < 0) // looked up by the last extension only, "*.tar.gz" is general
+            indexed = byExtension.putIfAbsent(glob.substring(1), rule) == null;
+        if (!indexed)
+            general.add(rule);
+    }
+
+    private static boolean hasWildcards(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '\\')
+                return true;
+        }
+        return false;
+    }
+
+    static String globToRegex(String glob) {
+        StringBuilder sb = new StringBuilder(glob.length() * 2);
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        i++;
+                        if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                            i++;
+                            sb.append("(?:.*/)?"); // "**/" also matches zero directories
+                        } else
+                            sb.append(".*");
+                    } else
+                        sb.append("[^/]*");
+                    break;
+                case '?':
+                    sb.append("[^/]");
+                    break;
+                case '[':
+                    int close = glob.indexOf(']', i + 1);
+                    if (close < 0) {
+                        sb.append("\\[");
+                    } else {
+                        String cls = glob.substring(i + 1, close);
+                        if (cls.startsWith("!"))
+                            cls = "^" + cls.substring(1);
+                        sb.append('[').append(cls.replace("\\", "\\\\")).append(']');
+                        i = close;
+                    }
+                    break;
+                case '\\':
+                    if (i + 1 < glob.length())
+                        sb.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                    break;
+                default:
+                    if ("().+^$|{}".indexOf(c) >= 0)
+                        sb.append('\\');
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static final class Rule {
+        final int index;
+        final boolean include;
+        final String pattern;
+        final boolean directoryOnly;
+        final Pattern regex;
+        final boolean nameOnly;
+
+        Rule(int index, boolean include, String pattern, boolean directoryOnly, Pattern regex, boolean nameOnly) {
+            this.index = index;
+            this.include = include;
+            this.pattern = pattern;
+            this.directoryOnly = directoryOnly;
+            this.regex = regex;
+            this.nameOnly = nameOnly;
+        }
+
+        boolean matches(String relativePath, String name) {
+            return regex.matcher(nameOnly ? name : relativePath).matches();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.kos.mycopy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reserves disk space for a destination file before copying, so that the file system can allocate it in few
+ * large extents instead of growing it chunk by chunk.
+ * <p>
+ * Java has no access to {@code fallocate(2)} short of native code, so the {@code fallocate} utility is used where
+ * available, with {@code --keep-size}: reserved space doesn't change file size and a crash never leaves a file which
+ * looks completely copied. Otherwise files which are renamed into place only when complete are extended to their
+ * final length upfront, which doesn't reserve extents but still saves repeated size updates.
+ */
+public class Preallocator {
+    private static final String FALLOCATE = "fallocate";
+
+    private static volatile boolean fallocateAvailable = !System.getProperty("os.name", "").startsWith("Windows");
+
+    /**
+     * @param file      file open as {@code channel}
+     * @param channel   open writable channel
+     * @param length    expected final file length
+     * @param temporary whether {@code file} is renamed into place when complete, so its size can be changed
+     */
+    public static void preallocate(File file, FileChannel channel, long length, boolean temporary)
+            throws IOException {
+        if (length <= channel.size())
+            return;
+        if (fallocateAvailable && fallocate(file, length))
+            return;
+        if (temporary)
+            channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+    }
+
+    /**
+     * Cuts preallocated space beyond {@code length}, including space reserved past end of file.
+     */
+    public static void trim(File file, long length) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(length); // unlike FileChannel.truncate, always truncates: frees blocks reserved past the end
+        }
+    }
+
+    private static boolean fallocate(File file, long length) {
+        try {
+            Process p = new ProcessBuilder(FALLOCATE, "--keep-size", "-l", Long.toString(length),
+                    file.getAbsolutePath())
+                    .redirectErrorStream(true)
+                    .start();
+            p.getOutputStream().close();
+            p.getInputStream().close();
+            if (!p.waitFor(10, TimeUnit.SECONDS)) {
+                p.destroy();
+                return false;
+            }
+            return p.exitValue() == 0; // non zero: likely not supported by this file system
+        } catch (IOException e) {
+            System.out.println("fallocate is not available, preallocating temporary files only");
+            fallocateAvailable = false;
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
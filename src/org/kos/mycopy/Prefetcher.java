@@ -0,0 +1,203 @@
+package org.kos.mycopy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lookahead stage preparing files shortly before copying threads get to them: creates the destination parent
+ * directory, opens the source (which brings its metadata into cache) and reads its first {@link #READ_AHEAD_BYTES}
+ * so they are in the page cache when the copy starts. For small files that's most of the latency moved off the
+ * copying thread.
+ * <p>
+ * Java has no {@code posix_fadvise(WILLNEED)}, hence the plain read. It takes a read ticket from the
+ * {@link DeviceScheduler} like copying threads do, so it doesn't add to the seeking on devices limited to few readers.
+ * At most {@code depth} prepared files are kept open waiting to be taken. A file taken by a copying thread before it
+ * was prepared is a miss and is skipped.
+ */
+public class Prefetcher {
+    public static final int READ_AHEAD_BYTES = 128 * 1024;
+
+    private static final Prepared QUEUED = new Prepared(null);
+    private static final Prepared IN_PROGRESS = new Prepared(null);
+    private static final Prepared CLAIMED = new Prepared(null);
+
+    private final BlockingQueue<FileToCopy> upcoming;
+    private final CreatedDirectories createdDirectories;
+    private final DeviceScheduler deviceScheduler;
+    private final Semaphore depth;
+    private final Map<FileToCopy, Prepared> prepared = new ConcurrentHashMap<>();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_AHEAD_BYTES);
+    private final Thread thread = new Thread(this::run, "MyCopy prefetcher");
+    private volatile boolean stopped;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong wasted = new AtomicLong();
+
+    /**
+     * @param depth   how many prepared files may wait for copying threads
+     * @param backlog how many upcoming files may be queued, files offered beyond that are not prefetched
+     */
+    public Prefetcher(int depth, int backlog, CreatedDirectories createdDirectories,
+                      DeviceScheduler deviceScheduler) {
+        this.createdDirectories = createdDirectories;
+        this.deviceScheduler = deviceScheduler;
+        this.depth = new Semaphore(depth);
+        this.upcoming = new ArrayBlockingQueue<>(backlog);
+    }
+
+    public void start() {
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Closes files prepared but not taken.
+     */
+    public void stop() {
+        stopped = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Prepared p : prepared.values())
+            p.close();
+        prepared.clear();
+    }
+
+    /**
+     * Queues a file to be prepared, files should be offered in the order they are going to be copied.
+     */
+    public void offer(FileToCopy fileToCopy) {
+        if (prepared.putIfAbsent(fileToCopy, QUEUED) == null && !upcoming.offer(fileToCopy))
+            prepared.remove(fileToCopy, QUEUED);
+    }
+
+    /**
+     * @return source channel opened and read ahead for {@code fileToCopy}, {@code null} if it wasn't prepared
+     */
+    public FileChannel take(FileToCopy fileToCopy) {
+        Prepared[] taken = new Prepared[1];
+        prepared.compute(fileToCopy, (f, p) -> {
+            if (p == QUEUED || p == IN_PROGRESS)
+                return CLAIMED; // prefetcher will skip or discard it
+            taken[0] = p;
+            return null;
+        });
+        if (taken[0] == null || taken[0] == CLAIMED) {
+            misses.incrementAndGet();
+            return null;
+        }
+        depth.release();
+        hits.incrementAndGet();
+        return taken[0].channel;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return files prepared in vain because copying thread had already started on them
+     */
+    public long getWasted() {
+        return wasted.get();
+    }
+
+    private void run() {
+        while (!stopped) {
+            FileToCopy fileToCopy;
+            try {
+                fileToCopy = upcoming.poll(100, TimeUnit.MILLISECONDS);
+                if (fileToCopy == null)
+                    continue;
+                depth.acquire();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (!prepared.replace(fileToCopy, QUEUED, IN_PROGRESS)) {
+                prepared.remove(fileToCopy, CLAIMED); // already being copied
+                depth.release();
+                continue;
+            }
+
+            Prepared p = prepare(fileToCopy);
+            if (p == null || !prepared.replace(fileToCopy, IN_PROGRESS, p)) {
+                // failed (copying will report it) or claimed meanwhile
+                prepared.remove(fileToCopy, CLAIMED);
+                prepared.remove(fileToCopy, IN_PROGRESS);
+                if (p != null) {
+                    p.close();
+                    wasted.incrementAndGet();
+                }
+                depth.release();
+            }
+        }
+    }
+
+    private Prepared prepare(FileToCopy fileToCopy) {
+        File source = fileToCopy.getSource();
+        File parent = fileToCopy.getDestination().getParentFile();
+        if (parent != null)
+            createdDirectories.ensure(parent); // copying will complain if it didn't work
+
+        DeviceScheduler.Ticket ticket;
+        try {
+            ticket = deviceScheduler.acquireRead(source);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // being stopped
+            return null;
+        }
+        FileChannel channel = null;
+        try {
+            channel = new FileInputStream(source).getChannel();
+            buffer.clear();
+            if (fileToCopy.getSourceBytes() < READ_AHEAD_BYTES)
+                buffer.limit((int) fileToCopy.getSourceBytes());
+            while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+                // the data itself is not needed, only its presence in the page cache
+            }
+            return new Prepared(channel);
+        } catch (IOException e) {
+            if (channel != null)
+                new Prepared(channel).close();
+            return null;
+        } finally {
+            deviceScheduler.release(ticket);
+        }
+    }
+
+    private static final class Prepared {
+        final FileChannel channel;
+
+        Prepared(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void close() {
+            if (channel == null)
+                return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // read only, nothing to lose
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.kos.mycopy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backs off when the host is under I/O or memory stress, as reported by Linux pressure stall information
+ * ({@code /proc/pressure/*}).
+ * <p>
+ * Keeps a throttle factor between {@link #MIN_FACTOR} and 1: halved every sample while pressure is above the high
+ * threshold, raised in small steps while it's below the low threshold. The factor scales both the number of files
+ * being copied at once and the chunk rate (by pausing between chunks proportionally to the chunk time).
+ */
+public class PressureGovernor {
+    public static final File IO_PRESSURE = new File("/proc/pressure/io");
+    public static final File MEMORY_PRESSURE = new File("/proc/pressure/memory");
+
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+    private static final double MIN_FACTOR = 1.0 / 16;
+    private static final double FACTOR_STEP = 1.0 / 8;
+
+    private final int threads;
+    private final double highThreshold;
+    private final double lowThreshold;
+    private final StatusListener statusListener;
+
+    private final ResizableSemaphore workers;
+    private volatile double factor = 1;
+    private ScheduledExecutorService sampler;
+
+    /**
+     * @param highThreshold "some avg10" percentage above which copying is slowed down
+     * @param lowThreshold  "some avg10" percentage below which copying is sped up again
+     */
+    public PressureGovernor(int threads, double highThreshold, double lowThreshold, StatusListener statusListener) {
+        this.threads = threads;
+        this.highThreshold = highThreshold;
+        this.lowThreshold = lowThreshold;
+        this.statusListener = statusListener;
+        this.workers = new ResizableSemaphore(threads);
+    }
+
+    public static boolean isSupported() {
+        return IO_PRESSURE.canRead();
+    }
+
+    public synchronized void start() {
+        if (sampler != null)
+            return;
+        if (!isSupported()) {
+            System.out.println("Pressure stall information is not available, pressure throttling is disabled");
+            return;
+        }
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pressure governor");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleWithFixedDelay(this::sample, SAMPLE_INTERVAL_MS, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+            sampler = null;
+        }
+    }
+
+    /**
+     * Blocks until current throttle level allows one more file to be copied.
+     */
+    public void acquireWorker() throws InterruptedException {
+        workers.acquire();
+    }
+
+    public void releaseWorker() {
+        workers.release();
+    }
+
+    /**
+     * Pauses after a chunk which took {@code chunkNanos} to transfer, so that chunk rate is scaled
+     * by the current throttle factor.
+     */
+    public void pauseAfterChunk(long chunkNanos) {
+        double f = factor;
+        if (f >= 1)
+            return;
+        long pauseNanos = (long) (chunkNanos * (1 - f) / f);
+        try {
+            TimeUnit.NANOSECONDS.sleep(Math.min(pauseNanos, TimeUnit.SECONDS.toNanos(1)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public double getFactor() {
+        return factor;
+    }
+
+    private void sample() {
+        double pressure = Math.max(someAvg10(IO_PRESSURE), someAvg10(MEMORY_PRESSURE));
+        if (pressure < 0)
+            return;
+
+        double prev = factor;
+        double f = prev;
+        if (pressure > highThreshold)
+            f = Math.max(MIN_FACTOR, prev / 2);
+        else if (pressure < lowThreshold)
+            f = Math.min(1, prev + FACTOR_STEP);
+
+        if (f != prev) {
+            factor = f;
+            workers.setPermits(Math.max(1, (int) Math.ceil(threads * f)));
+            statusListener.status(f >= 1 ?
+                    String.format("Pressure %.1f%%, throttling off", pressure) :
+                    String.format("Pressure %.1f%%, throttled to %d%%", pressure, Math.round(f * 100)));
+        }
+    }
+
+    /**
+     * @return "some avg10" value of a pressure file, or {@code -1} if it can't be read
+     */
+    static double someAvg10(File pressureFile) {
+        try {
+            for (String line : Files.readAllLines(pressureFile.toPath(), StandardCharsets.US_ASCII)) {
+                if (!line.startsWith("some "))
+                    continue;
+                for (String field : line.split(" ")) {
+                    if (field.startsWith("avg10="))
+                        return Double.parseDouble(field.substring("avg10=".length()));
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1;
+    }
+
+    private static final class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = -2871546120954127403L;
+
+        private int permits;
+
+        ResizableSemaphore(int permits) {
+            super(permits, true);
+            this.permits = permits;
+        }
+
+        synchronized void setPermits(int newPermits) {
+            int delta = newPermits - permits;
+            if (delta > 0)
+                release(delta);
+            else if (delta < 0)
+                reducePermits(-delta);
+            permits = newPermits;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.kos.mycopy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket shared by all copying threads. Lock free: reserving tokens is a single CAS on the time at which
+ * the bucket becomes empty, the caller then sleeps outside of any critical section.
+ */
+public class RateLimiter {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    // how much unused budget can be accumulated, allows short bursts after idle periods
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private volatile long permitsPerSecond;
+    // time at which all handed out permits are "paid" for
+    private final AtomicLong paidUntil = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param permitsPerSecond rate limit, {@code 0} means unlimited
+     */
+    public RateLimiter(long permitsPerSecond) {
+        this.permitsPerSecond = Math.max(0, permitsPerSecond);
+    }
+
+    public long getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Can be changed at any moment, affects all subsequent {@link #acquire(long)} calls.
+     *
+     * @param permitsPerSecond new rate limit, {@code 0} means unlimited
+     */
+    public void setPermitsPerSecond(long permitsPerSecond) {
+        this.permitsPerSecond = Math.max(0, permitsPerSecond);
+        paidUntil.set(System.nanoTime()); // forget debts made under the old limit
+    }
+
+    public boolean isLimited() {
+        return permitsPerSecond > 0;
+    }
+
+    /**
+     * Blocks until {@code permits} can be consumed without exceeding the rate. Returns early if the thread
+     * is interrupted, leaving the interrupted flag set.
+     */
+    public void acquire(long permits) {
+        long rate = permitsPerSecond;
+        if (rate <= 0 || permits <= 0)
+            return;
+
+        long cost = permits >= Long.MAX_VALUE / NANOS_PER_SECOND ?
+                Long.MAX_VALUE / 2 :
+                permits * NANOS_PER_SECOND / rate;
+
+        long now;
+        long newPaidUntil;
+        while (true) {
+            now = System.nanoTime();
+            long prev = paidUntil.get();
+            // paid in advance by at most BURST_NANOS of unused budget
+            newPaidUntil = Math.max(prev, now - BURST_NANOS) + cost;
+            if (paidUntil.compareAndSet(prev, newPaidUntil))
+                break;
+        }
+
+        long waitNanos = newPaidUntil - now;
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return chunk size to use for a transfer so that a chunk takes about 1/10 second at the current rate
+     */
+    public long chunkSize(long maxChunkSize, long minChunkSize) {
+        long rate = permitsPerSecond;
+        if (rate <= 0)
+            return maxChunkSize;
+        return Math.max(minChunkSize, Math.min(maxChunkSize, rate / 10));
+    }
+}
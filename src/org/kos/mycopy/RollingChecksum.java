@@ -0,0 +1,57 @@
+package org.kos.mycopy;
+
+/**
+ * Weak checksum of a fixed size window which can be moved by one byte in constant time, as in rsync: {@code a} is the
+ * sum of the window's bytes and {@code b} the sum of its prefix sums, both modulo 2^16.
+ */
+public class RollingChecksum {
+    private final int windowSize;
+    private int a;
+    private int b;
+
+    public RollingChecksum(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @return checksum of {@code length} bytes of {@code buf} starting at {@code offset}
+     */
+    public static int of(byte[] buf, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += buf[offset + i] & 0xff;
+            b += a;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * Starts over with the window at {@code buf[offset, offset + windowSize)}.
+     */
+    public void reset(byte[] buf, int offset) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < windowSize; i++) {
+            a += buf[offset + i] & 0xff;
+            b += a;
+        }
+        this.a = a & 0xffff;
+        this.b = b & 0xffff;
+    }
+
+    /**
+     * Moves the window one byte forward.
+     *
+     * @param out first byte of the window
+     * @param in  byte following the window
+     */
+    public void roll(byte out, byte in) {
+        a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+        b = (b - windowSize * (out & 0xff) + a) & 0xffff;
+    }
+
+    public int value() {
+        return a | (b << 16);
+    }
+}
@@ -0,0 +1,102 @@
+package org.kos.mycopy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies file ranges without writing all-zero blocks, leaving holes in the destination instead.
+ * <p>
+ * Java can't ask the file system where source holes are ({@code SEEK_DATA}/{@code SEEK_HOLE}) without native code,
+ * so data is read and scanned for zero blocks. Holes still cost a read, but neither writes nor destination space.
+ * All writes are positional, so destination channel position is not used.
+ */
+public class SparseCopier {
+    public static final int BLOCK_SIZE = 4096;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> buffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private final AtomicLong bytesSkipped = new AtomicLong();
+
+    public long getBytesSkipped() {
+        return bytesSkipped.get();
+    }
+
+    /**
+     * Copies up to {@code count} bytes starting at {@code position} of {@code in} to the same position of
+     * {@code out}.
+     *
+     * @return number of bytes copied or skipped
+     */
+    public long transfer(FileChannel in, long position, long count, FileChannel out) throws IOException {
+        ByteBuffer buf = buffers.get();
+        long done = 0;
+        while (done < count) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), count - done));
+            int read = 0;
+            while (buf.hasRemaining()) {
+                int r = in.read(buf, position + done + read);
+                if (r <= 0)
+                    break;
+                read += r;
+            }
+            if (read == 0)
+                break;
+
+            writeNonZeroRuns(buf, read, position + done, out);
+            done += read;
+        }
+        return done;
+    }
+
+    /**
+     * Sets final destination length, in case the source ends with a hole which wasn't written.
+     */
+    public void finish(FileChannel out, long length) throws IOException {
+        if (out.size() < length)
+            out.write(ByteBuffer.wrap(new byte[1]), length - 1);
+    }
+
+    private void writeNonZeroRuns(ByteBuffer buf, int length, long filePosition, FileChannel out) throws IOException {
+        int runStart = -1;
+        for (int blockStart = 0; blockStart < length; blockStart += BLOCK_SIZE) {
+            int blockEnd = Math.min(length, blockStart + BLOCK_SIZE);
+            boolean zero = isZero(buf, blockStart, blockEnd);
+            if (!zero && runStart < 0)
+                runStart = blockStart;
+            else if (zero) {
+                if (runStart >= 0) {
+                    write(buf, runStart, blockStart, filePosition, out);
+                    runStart = -1;
+                }
+                bytesSkipped.addAndGet(blockEnd - blockStart);
+            }
+        }
+        if (runStart >= 0)
+            write(buf, runStart, length, filePosition, out);
+    }
+
+    private static void write(ByteBuffer buf, int from, int to, long filePosition, FileChannel out)
+            throws IOException {
+        ByteBuffer run = buf.duplicate();
+        run.limit(to).position(from);
+        long pos = filePosition + from;
+        while (run.hasRemaining())
+            pos += out.write(run, pos);
+    }
+
+    private static boolean isZero(ByteBuffer buf, int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8)
+            if (buf.getLong(i) != 0)
+                return false;
+        for (; i < to; i++)
+            if (buf.get(i) != 0)
+                return false;
+        return true;
+    }
+}
@@ -1,21 +1,31 @@
 package org.kos.mycopy;
 
 import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class StrategyFilter {
+    private static final int MAX_PENDING_CHECKS = 1024;
+
     private final CopyStrategy copyStrategy;
     private ArrayBlockingQueue<Utils.Pair<StatusListener, ProgressListener>> currentFileListeners;
     private final StatusListener totalStatusListener;
     private final ProgressListener totalProgressListener;
     private final ExecutorService executor;
+    private final File destinationRoot;
+    private final List<File> extraDestinationRoots;
+    private final Map<FileToCopy, List<File>> destinations = new ConcurrentHashMap<>();
 
     private int totalSourceFiles;
     private final AtomicInteger totalFilesScanned = new AtomicInteger();
@@ -27,12 +37,38 @@ public class StrategyFilter {
                           StatusListener totalStatusListener,
                           ProgressListener totalProgressListener,
                           ExecutorService executor
+    ) {
+        this(copyStrategy, currentFileListeners, totalStatusListener, totalProgressListener, executor, null,
+                Collections.emptyList());
+    }
+
+    /**
+     * Checks every file against its destination under {@code destinationRoot} and the corresponding files under
+     * {@code extraDestinationRoots}, see {@link #getDestinations()}.
+     */
+    public StrategyFilter(CopyStrategy copyStrategy,
+                          ArrayBlockingQueue<Utils.Pair<StatusListener, ProgressListener>> currentFileListeners,
+                          StatusListener totalStatusListener,
+                          ProgressListener totalProgressListener,
+                          ExecutorService executor,
+                          File destinationRoot,
+                          List<File> extraDestinationRoots
     ) {
         this.copyStrategy = copyStrategy;
         this.currentFileListeners = currentFileListeners;
         this.totalStatusListener = totalStatusListener;
         this.totalProgressListener = totalProgressListener;
         this.executor = executor;
+        this.destinationRoot = destinationRoot;
+        this.extraDestinationRoots = extraDestinationRoots;
+    }
+
+    /**
+     * @return files kept by the last {@link #filter(List)} with extra destination roots -> destinations they have to
+     * be copied to, the main one included only if it needs the file too
+     */
+    public Map<FileToCopy, List<File>> getDestinations() {
+        return destinations;
     }
 
     public List<FileToCopy> filter(List<FileToCopy> filesToCopy) {
@@ -41,25 +77,33 @@ public class StrategyFilter {
         totalFilesToCopy.set(totalSourceFiles);
         totalBytesToCopy.set(0);
 
-        final List<Future<FileToCopy>> futures = new ArrayList<>();
+        // files are streamed through a window of pending checks, so neither files nor futures pile up
+        final Queue<Future<FileToCopy>> futures = new ArrayDeque<>(MAX_PENDING_CHECKS);
+        final BitSet keep = new BitSet(totalSourceFiles);
+        int submitted = 0;
+        int checked = 0;
         for (FileToCopy fileToCopy : filesToCopy) {
             futures.add(executor.submit(() -> shouldCopy(fileToCopy)));
+            submitted++;
 
-            if (Thread.currentThread().isInterrupted())
-                return Collections.emptyList();
-        }
-
-        final List<FileToCopy> res = new ArrayList<>();
-        for (Future<FileToCopy> future : futures) {
-            FileToCopy fileToCopy = Utils.getFuture(future);
-
-            if (fileToCopy != null)
-                res.add(fileToCopy);
+            while (futures.size() >= MAX_PENDING_CHECKS || (submitted == totalSourceFiles && !futures.isEmpty())) {
+                if (Utils.getFuture(futures.poll()) != null)
+                    keep.set(checked);
+                checked++;
+            }
 
             if (Thread.currentThread().isInterrupted())
                 return Collections.emptyList();
         }
 
+        if (filesToCopy instanceof FileTable) {
+            // filter in place rather than materializing every file to copy
+            ((FileTable) filesToCopy).retain(keep);
+            return filesToCopy;
+        }
+        final List<FileToCopy> res = new ArrayList<>(keep.cardinality());
+        for (int i = keep.nextSetBit(0); i >= 0; i = keep.nextSetBit(i + 1))
+            res.add(filesToCopy.get(i));
         return res;
     }
 
@@ -67,17 +111,38 @@ public class StrategyFilter {
         if (Thread.currentThread().isInterrupted())
             return null;
 
-        Utils.Pair<StatusListener, ProgressListener> currentFileListener = currentFileListeners.poll();
-        if (currentFileListener == null) {
-            System.out.println("oops");
-            System.exit(-1);
+        // the caller thread runs checks too when the executor queue is full, so there may be more checking threads
+        // than listeners
+        Utils.Pair<StatusListener, ProgressListener> currentFileListener;
+        try {
+            currentFileListener = currentFileListeners.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
 
         File src = fileToCopy.getSource();
         currentFileListener.a.status("Checking " + src.getAbsolutePath());
         final File dstFile = fileToCopy.getDestination();
 
-        boolean shouldCopy = copyStrategy.shouldCopy(src, dstFile, executor);
+        boolean shouldCopy;
+        if (extraDestinationRoots.isEmpty()) {
+            shouldCopy = copyStrategy.shouldCopy(src, dstFile, executor);
+        } else {
+            // every destination may be at a different state
+            List<File> needed = new ArrayList<>(extraDestinationRoots.size() + 1);
+            if (copyStrategy.shouldCopy(src, dstFile, executor))
+                needed.add(dstFile);
+            String relativePath = dstFile.getPath().substring(destinationRoot.getPath().length());
+            for (File root : extraDestinationRoots) {
+                File extra = new File(root, relativePath);
+                if (copyStrategy.shouldCopy(src, extra, executor))
+                    needed.add(extra);
+            }
+            shouldCopy = !needed.isEmpty();
+            if (shouldCopy)
+                destinations.put(fileToCopy, needed);
+        }
         if (shouldCopy) {
             totalBytesToCopy.addAndGet(fileToCopy.getSourceBytes());
         } else {
@@ -0,0 +1,94 @@
+package org.kos.mycopy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Wire format shared by {@link TransportSender} and {@link TransportReceiver}.
+ * <p>
+ * The sender opens with {@link #MAGIC}, {@link #VERSION} and flags, everything it sends after that is deflated if
+ * {@link #FLAG_COMPRESS} is set. Then it offers every file ({@link #OFFER}) without waiting for answers, the receiver
+ * checks them against its copy strategy and answers {@link #WANT} or {@link #SKIP} as checks complete. Wanted files
+ * are streamed back to back as {@link #FILE}, {@link #DATA}... {@link #FILE_END}, and are acknowledged with
+ * {@link #DONE} or {@link #FAILED} once written. So checking, sending and writing overlap and no file costs a round
+ * trip. {@link #FINISH} is answered with {@link #FINISHED} when every received file is written.
+ * <p>
+ * With {@link #FLAG_DELTA} the receiver may answer {@link #WANT_DELTA} with the {@link BlockSignature} of its old
+ * version of a file. The file then comes as {@link #FILE_DELTA} followed by literal {@link #DATA} and references to
+ * old blocks ({@link #BLOCKS}), see {@link DeltaEncoder}.
+ */
+public final class Transport {
+    public static final int MAGIC = 0x4d79_4370; // "MyCp"
+    public static final int VERSION = 1;
+    public static final int FLAG_COMPRESS = 1;
+    public static final int FLAG_DELTA = 2;
+
+    public static final int DATA_CHUNK_SIZE = 256 * 1024;
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    // sender -> receiver
+    /** int id, UTF relative path, long size, long mtime */
+    public static final byte OFFER = 1;
+    public static final byte OFFERS_END = 2;
+    /** int id, long size */
+    public static final byte FILE = 3;
+    /** int length, bytes */
+    public static final byte DATA = 4;
+    /** int id, boolean complete, after {@link #FILE_DELTA} MD5 of the whole file */
+    public static final byte FILE_END = 5;
+    public static final byte FINISH = 6;
+    /** int id, long size */
+    public static final byte FILE_DELTA = 7;
+    /** int first block, int count */
+    public static final byte BLOCKS = 8;
+
+    // receiver -> sender
+    /** int id */
+    public static final byte WANT = 11;
+    /** int id */
+    public static final byte SKIP = 12;
+    /** int id */
+    public static final byte DONE = 13;
+    /** int id, UTF message */
+    public static final byte FAILED = 14;
+    public static final byte FINISHED = 15;
+    /** int id, signature */
+    public static final byte WANT_DELTA = 16;
+
+    private Transport() {
+    }
+
+    static DataOutputStream output(OutputStream socketOut, boolean compress) {
+        OutputStream out = new BufferedOutputStream(socketOut, BUFFER_SIZE);
+        if (compress)
+            out = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED), BUFFER_SIZE, true);
+        return new DataOutputStream(out);
+    }
+
+    static DataInputStream input(InputStream socketIn, boolean compressed) {
+        InputStream in = new BufferedInputStream(socketIn, BUFFER_SIZE);
+        if (compressed)
+            in = new InflaterInputStream(in, new Inflater(), BUFFER_SIZE);
+        return new DataInputStream(in);
+    }
+
+    /**
+     * @return path of {@code file} under {@code root}, separated by {@code /}
+     */
+    static String relativePath(File root, File file) {
+        String path = file.getPath().substring(root.getPath().length());
+        if (path.startsWith(File.separator))
+            path = path.substring(1);
+        return path.replace(File.separatorChar, '/');
+    }
+}
@@ -0,0 +1,750 @@
+package org.kos.mycopy;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receiving end of {@link TransportSender}: writes pushed files under a destination directory, see
+ * {@link Transport} for the protocol.
+ * <p>
+ * Offered files are checked against the copy strategy here, next to the destination, with a stand-in for the
+ * source carrying its size and modification time. So only strategies looking at those make sense remotely.
+ * Files up to {@link #SMALL_FILE_SIZE} are received whole and written by a pool of threads while the connection
+ * reads on, larger ones are written as they arrive.
+ * <p>
+ * If the sender asks for deltas, old versions of files of at least {@link #DELTA_MIN_SIZE} are offered as a basis:
+ * the file is rebuilt next to it from literal data and old blocks, checked against the sender's digest and renamed
+ * over the old version.
+ * <p>
+ * Senders aren't authenticated, anyone who can connect can create or replace any file under the destination. So
+ * the receiver should listen on the loopback interface (reached through an SSH tunnel, for instance) or on a
+ * trusted network only.
+ */
+public class TransportReceiver {
+    public static final int SMALL_FILE_SIZE = 256 * 1024;
+    public static final long DELTA_MIN_SIZE = 64 * 1024;
+
+    private final File destination;
+    private final CopyStrategy copyStrategy;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final Thread acceptor = new Thread(this::accept, "MyCopy receiver");
+    private volatile boolean stopped;
+
+    private final AtomicInteger filesReceived = new AtomicInteger();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+
+    /**
+     * @param bindAddress address of the interface to listen on, e.g. {@link InetAddress#getLoopbackAddress()}
+     * @param port        port to listen on, {@code 0} for any free one, see {@link #getPort()}
+     */
+    public TransportReceiver(InetAddress bindAddress, int port, File destination, CopyStrategy copyStrategy,
+                             int threads) throws IOException {
+        this.destination = destination;
+        this.copyStrategy = copyStrategy;
+        this.serverSocket = new ServerSocket(port, 0, bindAddress);
+        // since we have caller runs policy: caller thread is counted too, hence -1
+        this.executor = new ThreadPoolExecutor(1, Math.max(1, threads - 1), 30, TimeUnit.SECONDS,
+                new LinkedBlockingDeque<>(100), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void start() {
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Stops listening and drops connections, files being received are left incomplete.
+     */
+    public void stop() {
+        stopped = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // not listening anyway
+        }
+        for (Socket socket : connections)
+            close(socket);
+        executor.shutdown();
+    }
+
+    /**
+     * Waits until {@link #stop()} is called.
+     */
+    public void join() throws InterruptedException {
+        acceptor.join();
+    }
+
+    public int getFilesReceived() {
+        return filesReceived.get();
+    }
+
+    /**
+     * @return file data received, after inflating it
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return bytes read from and written to connections as they went over the network, compressed or not,
+     * protocol included
+     */
+    public long getWireBytes() {
+        return wireBytes.get();
+    }
+
+    private void accept() {
+        while (!stopped) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.add(socket);
+                Thread connection = new Thread(() -> serve(socket), "MyCopy connection " + socket.getRemoteSocketAddress());
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                if (!stopped)
+                    System.out.println("Can't accept connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Answers answers = null;
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream socketIn = new CountingInputStream(socket.getInputStream(), wireBytes);
+            // not buffered: everything after the header may be compressed
+            DataInputStream header = new DataInputStream(socketIn);
+            if (header.readInt() != Transport.MAGIC)
+                throw new IOException("Not a MyCopy sender");
+            int version = header.readInt();
+            if (version != Transport.VERSION)
+                throw new IOException("Unsupported protocol version " + version);
+            int flags = header.readInt();
+
+            DataInputStream in = Transport.input(socketIn, (flags & Transport.FLAG_COMPRESS) != 0);
+            answers = new Answers(Transport.output(new CountingOutputStream(socket.getOutputStream(), wireBytes),
+                    false));
+            answers.start();
+            receive(new Session(in, answers, (flags & Transport.FLAG_DELTA) != 0));
+        } catch (EOFException e) {
+            System.out.println(socket.getRemoteSocketAddress() + " closed the connection");
+        } catch (IOException e) {
+            if (!stopped)
+                System.out.println(socket.getRemoteSocketAddress() + ": " + e.getMessage());
+        } finally {
+            if (answers != null)
+                answers.stop();
+            connections.remove(socket);
+            close(socket);
+        }
+    }
+
+    private void receive(Session session) throws IOException {
+        List<Future<?>> writes = new ArrayList<>();
+        while (true) {
+            byte type = session.nextFrame();
+            switch (type) {
+                case Transport.FILE: {
+                    int id = session.in.readInt();
+                    long size = readSize(session.in, id);
+                    String path = session.offered.remove(id);
+                    if (path == null)
+                        throw new IOException("File " + id + " wasn't offered");
+                    Future<?> write = receiveFile(session, id, resolve(path), size);
+                    if (write != null)
+                        writes.add(write);
+                    writes.removeIf(Future::isDone);
+                    break;
+                }
+                case Transport.FILE_DELTA: {
+                    int id = session.in.readInt();
+                    long size = readSize(session.in, id);
+                    String path = session.offered.remove(id);
+                    if (path == null)
+                        throw new IOException("File " + id + " wasn't offered");
+                    receiveDelta(session, id, resolve(path), size);
+                    break;
+                }
+                case Transport.FINISH:
+                    for (Future<?> write : writes)
+                        Utils.getFuture(write);
+                    session.answers.add(new Answer(Transport.FINISHED, 0, null));
+                    return;
+                default:
+                    throw new IOException("Unexpected frame " + type);
+            }
+        }
+    }
+
+    /**
+     * @return whether the file is wanted, files with unacceptable paths are wanted to be reported as failed
+     */
+    private boolean check(Session session, int id, String path, long size, long mtime) {
+        File dst = resolve(path);
+        boolean shouldCopy = dst == null || copyStrategy.shouldCopy(new RemoteSource(path, size, mtime), dst, executor);
+        if (shouldCopy && session.delta && dst != null && dst.isFile() && dst.length() >= DELTA_MIN_SIZE) {
+            try {
+                BlockSignature signature = BlockSignature.of(dst);
+                session.blockSizes.put(id, signature.getBlockSize());
+                session.answers.add(new Answer(Transport.WANT_DELTA, id, null, signature));
+                return true;
+            } catch (IOException e) {
+                System.out.println("Can't compute signature of " + dst + ", getting it whole: " + e.getMessage());
+            }
+        }
+        session.answers.add(new Answer(shouldCopy ? Transport.WANT : Transport.SKIP, id, null));
+        return shouldCopy;
+    }
+
+    /**
+     * Reads a file's data frames up to its end frame and writes it, or has it written by the executor.
+     *
+     * @param dst {@code null} if the path is not acceptable, the data is skipped
+     * @return pending write of a small file, {@code null} if already written
+     */
+    private Future<?> receiveFile(Session session, int id, File dst, long size) throws IOException {
+        DataInputStream in = session.in;
+        Answers answers = session.answers;
+        if (size <= SMALL_FILE_SIZE) {
+            byte[] data = new byte[(int) size];
+            int received = 0;
+            byte type;
+            while ((type = session.nextFrame()) == Transport.DATA) {
+                int length = in.readInt();
+                if (length < 0 || received + length > data.length)
+                    throw new IOException("File " + id + " is longer than announced");
+                in.readFully(data, received, length);
+                received += length;
+            }
+            boolean complete = readEnd(type, id, in);
+            bytesReceived.addAndGet(received);
+            if (!complete || dst == null) {
+                answers.add(failure(id, dst, complete));
+                return null;
+            }
+            return executor.submit(() -> {
+                try (OutputStream out = create(dst, session.createdDirectories)) {
+                    out.write(data);
+                    answers.add(new Answer(Transport.DONE, id, null));
+                    filesReceived.incrementAndGet();
+                } catch (IOException e) {
+                    answers.add(new Answer(Transport.FAILED, id, e.getMessage()));
+                    deletePartial(dst);
+                }
+            });
+        }
+
+        // large file, written as it comes, data frames have to be consumed even if it can't be
+        OutputStream out = null;
+        IOException error = null;
+        if (dst != null) {
+            try {
+                out = create(dst, session.createdDirectories);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        boolean complete;
+        try {
+            byte type;
+            while ((type = session.nextFrame()) == Transport.DATA) {
+                int length = in.readInt();
+                if (length < 0 || length > session.buffer.length)
+                    throw new IOException("Data frame of " + length + " bytes");
+                in.readFully(session.buffer, 0, length);
+                bytesReceived.addAndGet(length);
+                if (out != null && error == null) {
+                    try {
+                        out.write(session.buffer, 0, length);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+            }
+            complete = readEnd(type, id, in);
+        } catch (IOException e) {
+            // connection broken, don't leave a partial file behind
+            if (out != null) {
+                try {
+                    out.close();
+                } finally {
+                    deletePartial(dst);
+                }
+            }
+            throw e;
+        }
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+        if (error != null) {
+            answers.add(new Answer(Transport.FAILED, id, error.getMessage()));
+            deletePartial(dst);
+        } else if (!complete || dst == null) {
+            answers.add(failure(id, dst, complete));
+            if (dst != null)
+                deletePartial(dst);
+        } else {
+            answers.add(new Answer(Transport.DONE, id, null));
+            filesReceived.incrementAndGet();
+        }
+        return null;
+    }
+
+    /**
+     * Rebuilds a delta encoded file from literal data and blocks of its old version, in a temporary file replacing
+     * the old version once complete.
+     */
+    private void receiveDelta(Session session, int id, File dst, long size) throws IOException {
+        Integer blockSize = session.blockSizes.remove(id);
+        if (blockSize == null || dst == null)
+            throw new IOException("File " + id + " has no signature");
+        DataInputStream in = session.in;
+        File temp = new File(dst.getParentFile(), "." + dst.getName() + ".mycopy-tmp");
+        MessageDigest digest = BlockSignature.newDigest();
+        RandomAccessFile basis = null;
+        OutputStream out = null;
+        IOException error = null;
+        try {
+            basis = new RandomAccessFile(dst, "r");
+            out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(temp), Transport.BUFFER_SIZE),
+                    digest);
+        } catch (IOException e) {
+            error = e;
+        }
+
+        long written = 0;
+        boolean complete;
+        byte[] expectedDigest = new byte[BlockSignature.STRONG_BYTES];
+        try {
+            byte type;
+            while ((type = session.nextFrame()) == Transport.DATA || type == Transport.BLOCKS) {
+                if (type == Transport.DATA) {
+                    int length = in.readInt();
+                    if (length < 0 || length > session.buffer.length)
+                        throw new IOException("Data frame of " + length + " bytes");
+                    in.readFully(session.buffer, 0, length);
+                    bytesReceived.addAndGet(length);
+                    if (error == null) {
+                        try {
+                            out.write(session.buffer, 0, length);
+                            written += length;
+                        } catch (IOException e) {
+                            error = e;
+                        }
+                    }
+                } else {
+                    int first = in.readInt();
+                    int count = in.readInt();
+                    if (error == null) {
+                        try {
+                            written += copyBlocks(basis, (long) first * blockSize, (long) count * blockSize, out,
+                                    session.buffer);
+                        } catch (IOException e) {
+                            error = e;
+                        }
+                    }
+                }
+            }
+            complete = readEnd(type, id, in);
+            in.readFully(expectedDigest);
+        } catch (IOException e) {
+            // connection broken
+            closeQuietly(basis);
+            closeQuietly(out);
+            deletePartial(temp);
+            throw e;
+        }
+
+        closeQuietly(basis);
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+        if (error == null && complete && (written != size || !MessageDigest.isEqual(digest.digest(), expectedDigest)))
+            error = new IOException("Rebuilt file differs, old version changed meanwhile?");
+        if (error == null && complete) {
+            try {
+                Files.move(temp.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null || !complete) {
+            session.answers.add(new Answer(Transport.FAILED, id,
+                    error == null ? "Sender couldn't read the whole file" : error.getMessage()));
+            deletePartial(temp);
+        } else {
+            session.answers.add(new Answer(Transport.DONE, id, null));
+            filesReceived.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return bytes copied, less than {@code length} if the file ends earlier
+     */
+    private static long copyBlocks(RandomAccessFile basis, long position, long length, OutputStream out, byte[] buffer)
+            throws IOException {
+        basis.seek(position);
+        long copied = 0;
+        while (copied < length) {
+            int read = basis.read(buffer, 0, (int) Math.min(buffer.length, length - copied));
+            if (read < 0)
+                break;
+            out.write(buffer, 0, read);
+            copied += read;
+        }
+        return copied;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // failing anyway
+        }
+    }
+
+    private static long readSize(DataInputStream in, int id) throws IOException {
+        long size = in.readLong();
+        if (size < 0)
+            throw new IOException("File " + id + " of " + size + " bytes");
+        return size;
+    }
+
+    private static boolean readEnd(byte type, int id, DataInputStream in) throws IOException {
+        if (type != Transport.FILE_END)
+            throw new IOException("Unexpected frame " + type + " in file " + id);
+        if (in.readInt() != id)
+            throw new IOException("End of another file in file " + id);
+        return in.readBoolean();
+    }
+
+    private static Answer failure(int id, File dst, boolean complete) {
+        return new Answer(Transport.FAILED, id, dst == null ? "Path is outside of the destination" :
+                complete ? null : "Sender couldn't read the whole file");
+    }
+
+    private static OutputStream create(File dst, CreatedDirectories createdDirectories) throws IOException {
+        // one unlink, failing harmlessly for new files
+        if (!dst.delete() && dst.exists())
+            throw new IOException("Can't remove " + dst.getAbsolutePath());
+        if (!createdDirectories.ensure(dst.getParentFile()))
+            throw new IOException("Can't create " + dst.getParentFile() + " directory");
+        return new FileOutputStream(dst);
+    }
+
+    private static void deletePartial(File dst) {
+        if (dst.exists() && !dst.delete())
+            System.out.println("Can't remove " + dst.getAbsolutePath());
+    }
+
+    /**
+     * @return file under the destination, {@code null} if the path would lead outside of it. Names holding the local
+     * separator or a colon are refused too, on Windows they could name a parent directory or another drive
+     */
+    private File resolve(String path) {
+        if (path.isEmpty() || path.startsWith("/"))
+            return null;
+        for (String name : path.split("/"))
+            if (name.isEmpty() || name.equals(".") || name.equals("..") ||
+                    name.indexOf(File.separatorChar) >= 0 || name.indexOf(':') >= 0)
+                return null;
+        File file = new File(destination, path.replace('/', File.separatorChar));
+        // the final word, also catches symbolic links leading out of the destination
+        try {
+            String root = destination.getCanonicalPath();
+            if (!root.endsWith(File.separator))
+                root += File.separator;
+            if (!file.getCanonicalPath().startsWith(root))
+                return null;
+        } catch (IOException e) {
+            return null;
+        }
+        return file;
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already broken
+        }
+    }
+
+    /**
+     * State of one connection.
+     */
+    private final class Session {
+        final DataInputStream in;
+        final Answers answers;
+        // id -> relative path of offered files, until they are received or skipped
+        final Map<Integer, String> offered = new ConcurrentHashMap<>();
+        final byte[] buffer = new byte[Transport.DATA_CHUNK_SIZE];
+        // per connection, directories may be removed between jobs
+        final CreatedDirectories createdDirectories = new CreatedDirectories();
+        final boolean delta;
+        // id -> block size of the signature sent for the file
+        final Map<Integer, Integer> blockSizes = new ConcurrentHashMap<>();
+
+        Session(DataInputStream in, Answers answers, boolean delta) {
+            this.in = in;
+            this.answers = answers;
+            this.delta = delta;
+        }
+
+        /**
+         * Handles offers, which come between files as well as between data frames of a file.
+         *
+         * @return type of the next frame other than an offer
+         */
+        byte nextFrame() throws IOException {
+            while (true) {
+                byte type = in.readByte();
+                if (type == Transport.OFFER) {
+                    int id = in.readInt();
+                    String path = in.readUTF();
+                    long size = in.readLong();
+                    long mtime = in.readLong();
+                    offered.put(id, path);
+                    executor.submit(() -> {
+                        if (!check(this, id, path, size, mtime))
+                            offered.remove(id);
+                    });
+                } else if (type != Transport.OFFERS_END) {
+                    return type;
+                }
+            }
+        }
+    }
+
+    private static final class Answer {
+        final byte type;
+        final int id;
+        final String message;
+        final BlockSignature signature;
+
+        Answer(byte type, int id, String message) {
+            this(type, id, message, null);
+        }
+
+        Answer(byte type, int id, String message, BlockSignature signature) {
+            this.type = type;
+            this.id = id;
+            this.message = message;
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * Writes answers from checking, writing and connection threads, flushing when none are waiting.
+     */
+    private static final class Answers {
+        private static final Answer STOP = new Answer((byte) 0, 0, null);
+
+        private final DataOutputStream out;
+        private final BlockingQueue<Answer> queue = new LinkedBlockingQueue<>();
+        private final Thread thread = new Thread(this::run, "MyCopy answers");
+
+        Answers(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void start() {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void add(Answer answer) {
+            queue.add(answer);
+        }
+
+        /**
+         * Sends answers added so far.
+         */
+        void stop() {
+            queue.add(STOP);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    Answer answer = queue.poll();
+                    if (answer == null) {
+                        out.flush();
+                        answer = queue.take();
+                    }
+                    if (answer == STOP) {
+                        out.flush();
+                        return;
+                    }
+                    out.writeByte(answer.type);
+                    if (answer.type != Transport.FINISHED)
+                        out.writeInt(answer.id);
+                    if (answer.type == Transport.FAILED)
+                        out.writeUTF(answer.message);
+                    if (answer.type == Transport.WANT_DELTA)
+                        answer.signature.write(out);
+                }
+            } catch (SocketException e) {
+                // connection dropped, reported by the reading side
+            } catch (IOException e) {
+                System.out.println("Can't answer: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stand-in for a source file on the sending side, as seen by copy strategies.
+     */
+    private static final class RemoteSource extends File {
+        private static final long serialVersionUID = 6504911385027338713L;
+
+        private final long length;
+        private final long lastModified;
+
+        RemoteSource(String path, long length, long lastModified) {
+            super(path);
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public boolean isFile() {
+            return true;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public long lastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * Counts bytes read from a connection.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private final AtomicLong count;
+
+        CountingInputStream(InputStream in, AtomicLong count) {
+            super(in);
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count.addAndGet(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count.addAndGet(skipped);
+            return skipped;
+        }
+    }
+
+    /**
+     * Counts bytes written to a connection.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private final AtomicLong count;
+
+        CountingOutputStream(OutputStream out, AtomicLong count) {
+            super(out);
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len); // not byte by byte as FilterOutputStream does
+            count.addAndGet(len);
+        }
+    }
+}
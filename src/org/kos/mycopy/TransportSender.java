@@ -0,0 +1,403 @@
+package org.kos.mycopy;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes files to a {@link TransportReceiver}, see {@link Transport} for the protocol.
+ * <p>
+ * Three threads share the connection: one offers files, one reads answers, and the calling thread streams wanted
+ * files in the order the receiver asks for them. Output is flushed only when there is nothing more to send right
+ * away, so small files go out many per packet.
+ * <p>
+ * In delta mode files the receiver has an old version of are sent as differences from it, see {@link DeltaEncoder}.
+ */
+public class TransportSender {
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    private static final int OFFERS_PER_FLUSH = 256;
+    // marks the end of wanted files
+    private static final int NO_MORE_FILES = -1;
+
+    private final InetSocketAddress address;
+    private final boolean compress;
+    private final boolean delta;
+    private final Listener listener;
+    // id -> signature of the receiver's old version of the file
+    private final Map<Integer, BlockSignature> signatures = new ConcurrentHashMap<>();
+
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong literalBytes = new AtomicLong();
+    private final AtomicLong matchedBytes = new AtomicLong();
+
+    /**
+     * Progress callbacks, called from the sending thread unless noted otherwise.
+     */
+    public interface Listener {
+        /**
+         * The receiver asked for {@code fileToCopy}, called from the answer reading thread.
+         */
+        void wanted(FileToCopy fileToCopy);
+
+        /**
+         * Called before sending a chunk of a file, may block to throttle.
+         */
+        void beforeChunk(long bytes);
+
+        /**
+         * @param bytes       bytes of the chunk sent
+         * @param transferred bytes of the file sent so far
+         * @param nanos       time reading and sending the chunk took
+         */
+        void sent(FileToCopy fileToCopy, long bytes, long transferred, long nanos);
+
+        /**
+         * The receiver has written {@code fileToCopy} or failed to, called from the answer reading thread.
+         *
+         * @param error {@code null} if written successfully
+         */
+        void completed(FileToCopy fileToCopy, String error);
+    }
+
+    /**
+     * @param delta whether to send differences from old versions of files the receiver has
+     */
+    public TransportSender(InetSocketAddress address, boolean compress, boolean delta, Listener listener) {
+        this.address = address;
+        this.compress = compress;
+        this.delta = delta;
+        this.listener = listener;
+    }
+
+    /**
+     * Sends {@code files} the receiver wants. Returns once they are written on the other side, or early if the
+     * calling thread is interrupted.
+     *
+     * @param destinationRoot the files' destinations are sent relative to it
+     */
+    public void send(List<FileToCopy> files, File destinationRoot) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.setTcpNoDelay(true);
+            socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+
+            DataOutputStream header = new DataOutputStream(socket.getOutputStream());
+            header.writeInt(Transport.MAGIC);
+            header.writeInt(Transport.VERSION);
+            header.writeInt((compress ? Transport.FLAG_COMPRESS : 0) | (delta ? Transport.FLAG_DELTA : 0));
+            header.flush();
+            DataOutputStream out = Transport.output(socket.getOutputStream(), compress);
+            DataInputStream in = Transport.input(socket.getInputStream(), false);
+
+            BlockingQueue<Integer> wanted = new LinkedBlockingQueue<>();
+            if (files.isEmpty())
+                wanted.add(NO_MORE_FILES);
+            IOException[] failure = new IOException[1];
+            Thread offering = new Thread(() -> {
+                try {
+                    offer(files, destinationRoot, out);
+                } catch (IOException e) {
+                    failure[0] = e;
+                    close(socket);
+                }
+            }, "MyCopy offers");
+            Thread answering = new Thread(() -> {
+                try {
+                    readAnswers(files, in, wanted);
+                } catch (IOException e) {
+                    failure[0] = e;
+                    close(socket);
+                } finally {
+                    wanted.add(NO_MORE_FILES); // unblock the sending thread if the connection broke
+                }
+            }, "MyCopy answers");
+            offering.setDaemon(true);
+            answering.setDaemon(true);
+            offering.start();
+            answering.start();
+
+            try {
+                byte[] buffer = new byte[Transport.DATA_CHUNK_SIZE];
+                while (!Thread.currentThread().isInterrupted()) {
+                    Integer id = wanted.poll();
+                    if (id == null) {
+                        // nothing to send right now, let the receiver have what is buffered
+                        synchronized (out) {
+                            out.flush();
+                        }
+                        id = wanted.take();
+                    }
+                    if (id == NO_MORE_FILES)
+                        break;
+                    BlockSignature signature = signatures.remove(id);
+                    if (signature != null)
+                        sendDelta(id, files.get(id), signature, out);
+                    else
+                        sendFile(id, files.get(id), out, buffer);
+                }
+                if (Thread.currentThread().isInterrupted())
+                    return; // closing the connection drops files being received
+                synchronized (out) {
+                    out.writeByte(Transport.FINISH);
+                    out.flush();
+                }
+                answering.join();
+                offering.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure[0] != null && !Thread.currentThread().isInterrupted())
+                throw failure[0];
+        }
+    }
+
+    /**
+     * @return file data sent, literal data of delta encoded files included
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * @return bytes of delta encoded files sent as data
+     */
+    public long getLiteralBytes() {
+        return literalBytes.get();
+    }
+
+    /**
+     * @return bytes of delta encoded files found in old versions on the receiver
+     */
+    public long getMatchedBytes() {
+        return matchedBytes.get();
+    }
+
+    private void offer(List<FileToCopy> files, File destinationRoot, DataOutputStream out) throws IOException {
+        for (int id = 0; id < files.size(); id++) {
+            FileToCopy fileToCopy = files.get(id);
+            synchronized (out) {
+                out.writeByte(Transport.OFFER);
+                out.writeInt(id);
+                out.writeUTF(Transport.relativePath(destinationRoot, fileToCopy.getDestination()));
+                out.writeLong(fileToCopy.getSourceBytes());
+                out.writeLong(fileToCopy.getSource().lastModified());
+                if (id % OFFERS_PER_FLUSH == OFFERS_PER_FLUSH - 1)
+                    out.flush(); // let the receiver start checking
+            }
+        }
+        synchronized (out) {
+            out.writeByte(Transport.OFFERS_END);
+            out.flush();
+        }
+    }
+
+    private void readAnswers(List<FileToCopy> files, DataInputStream in, BlockingQueue<Integer> wanted)
+            throws IOException {
+        int answered = 0;
+        while (true) {
+            byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException e) {
+                throw new IOException("Receiver closed the connection");
+            }
+            switch (type) {
+                case Transport.WANT: {
+                    int id = in.readInt();
+                    listener.wanted(files.get(id));
+                    wanted.add(id);
+                    if (++answered == files.size())
+                        wanted.add(NO_MORE_FILES);
+                    break;
+                }
+                case Transport.WANT_DELTA: {
+                    int id = in.readInt();
+                    signatures.put(id, BlockSignature.read(in));
+                    listener.wanted(files.get(id));
+                    wanted.add(id);
+                    if (++answered == files.size())
+                        wanted.add(NO_MORE_FILES);
+                    break;
+                }
+                case Transport.SKIP:
+                    in.readInt();
+                    if (++answered == files.size())
+                        wanted.add(NO_MORE_FILES);
+                    break;
+                case Transport.DONE:
+                    listener.completed(files.get(in.readInt()), null);
+                    break;
+                case Transport.FAILED: {
+                    int id = in.readInt();
+                    listener.completed(files.get(id), in.readUTF());
+                    break;
+                }
+                case Transport.FINISHED:
+                    return;
+                default:
+                    throw new IOException("Unexpected answer " + type);
+            }
+        }
+    }
+
+    private void sendFile(int id, FileToCopy fileToCopy, DataOutputStream out, byte[] buffer) throws IOException {
+        long size = fileToCopy.getSourceBytes();
+        long transferred = 0;
+        synchronized (out) {
+            out.writeByte(Transport.FILE);
+            out.writeInt(id);
+            out.writeLong(size);
+        }
+        // a source which can't be read fails alone, the receiver drops it, while connection failures are thrown
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(fileToCopy.getSource());
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+        try {
+            while (in != null && transferred < size && !Thread.currentThread().isInterrupted()) {
+                int length = (int) Math.min(buffer.length, size - transferred);
+                listener.beforeChunk(length);
+                long started = System.nanoTime();
+                int read;
+                try {
+                    read = in.read(buffer, 0, length);
+                } catch (IOException e) {
+                    System.out.println(fileToCopy.getSource() + ": " + e.getMessage());
+                    break;
+                }
+                if (read <= 0)
+                    break; // source got shorter
+                synchronized (out) {
+                    out.writeByte(Transport.DATA);
+                    out.writeInt(read);
+                    out.write(buffer, 0, read);
+                }
+                transferred += read;
+                bytesSent.addAndGet(read);
+                listener.sent(fileToCopy, read, transferred, System.nanoTime() - started);
+            }
+        } finally {
+            if (in != null)
+                in.close();
+        }
+        synchronized (out) {
+            out.writeByte(Transport.FILE_END);
+            out.writeInt(id);
+            out.writeBoolean(transferred == size);
+        }
+    }
+
+    private void sendDelta(int id, FileToCopy fileToCopy, BlockSignature signature, DataOutputStream out)
+            throws IOException {
+        long size = fileToCopy.getSourceBytes();
+        long encoded = 0;
+        synchronized (out) {
+            out.writeByte(Transport.FILE_DELTA);
+            out.writeInt(id);
+            out.writeLong(size);
+        }
+        FileInputStream source = null;
+        try {
+            source = new FileInputStream(fileToCopy.getSource());
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+        // lets the receiver verify the rebuilt file, in case its old version changed since the signature
+        MessageDigest digest = BlockSignature.newDigest();
+        if (source != null) {
+            try (InputStream in = new SourceStream(new DigestInputStream(source, digest), fileToCopy.getSource())) {
+                encoded = new DeltaEncoder(signature, Transport.DATA_CHUNK_SIZE).encode(in, size,
+                        new DeltaEncoder.Sink() {
+                            private long transferred;
+                            private long started = System.nanoTime();
+
+                            @Override
+                            public void literal(byte[] buf, int offset, int length) throws IOException {
+                                listener.beforeChunk(length);
+                                synchronized (out) {
+                                    out.writeByte(Transport.DATA);
+                                    out.writeInt(length);
+                                    out.write(buf, offset, length);
+                                }
+                                bytesSent.addAndGet(length);
+                                literalBytes.addAndGet(length);
+                                sent(length);
+                            }
+
+                            @Override
+                            public void blocks(int first, int count, long bytes) throws IOException {
+                                synchronized (out) {
+                                    out.writeByte(Transport.BLOCKS);
+                                    out.writeInt(first);
+                                    out.writeInt(count);
+                                }
+                                matchedBytes.addAndGet(bytes);
+                                sent(bytes);
+                            }
+
+                            private void sent(long bytes) {
+                                long now = System.nanoTime();
+                                transferred += bytes;
+                                listener.sent(fileToCopy, bytes, transferred, now - started);
+                                started = now;
+                            }
+                        });
+            }
+        }
+        synchronized (out) {
+            out.writeByte(Transport.FILE_END);
+            out.writeInt(id);
+            out.writeBoolean(encoded == size);
+            out.write(digest.digest());
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already broken
+        }
+    }
+
+    /**
+     * Source file ending early instead of failing, so that the connection only sees exceptions of its own. Stops
+     * at interruption too.
+     */
+    private static final class SourceStream extends FilterInputStream {
+        private final File file;
+
+        SourceStream(InputStream in, File file) {
+            super(in);
+            this.file = file;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (Thread.currentThread().isInterrupted())
+                return -1;
+            try {
+                return super.read(b, off, len);
+            } catch (IOException e) {
+                System.out.println(file + ": " + e.getMessage());
+                return -1;
+            }
+        }
+    }
+}
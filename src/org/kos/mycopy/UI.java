@@ -29,7 +29,10 @@ public class UI {
     private JPanel panel;
 //    private JCheckBox checkHashCheckBox;
     private JSpinner threadsToUseSpinner;
+    private JSpinner bandwidthLimitSpinner;
+    private JSpinner filesLimitSpinner;
     private JCheckBox checkContentCheckBox;
+    private JComboBox<CopyOrder> copyOrderComboBox;
     private JPanel currentFilesPanel;
     private JScrollPane logScrollPane;
     private JTextArea logTextArea;
@@ -41,6 +44,7 @@ public class UI {
     private Preferences prefs = Preferences.userNodeForPackage(MyCopy.class);
 
     public UI() {
+        copyOrderComboBox.setModel(new DefaultComboBoxModel<>(CopyOrder.values()));
         loadPrefs();
 
         updateCurrentFileProgressBars();
@@ -83,6 +87,11 @@ public class UI {
                     pl[i] = pb::setValue;
                 }
 
+                CopyOptions options = new CopyOptions();
+                options.setCopyOrder((CopyOrder) copyOrderComboBox.getSelectedItem());
+                options.setBytesPerSecondLimit(bytesPerSecondLimit());
+                options.setFilesPerSecondLimit(filesPerSecondLimit());
+
                 goButton.setText("Stop!");
                 setOptionsEnabled(false);
                 copyEngine = new CopyEngine(
@@ -99,7 +108,8 @@ public class UI {
                         new File(destinationTextField.getText()),
                         copySourceItselfRadioButton.isSelected(),
                         copyStrategy,
-                        numberOfThreadsToUse()
+                        numberOfThreadsToUse(),
+                        options
                 );
             }
         });
@@ -180,6 +190,13 @@ public class UI {
 //        checkHashCheckBox.setSelected(prefs.getBoolean("checkHash", false));
         checkContentCheckBox.setSelected(prefs.getBoolean("checkContent", false));
         threadsToUseSpinner.setValue(prefs.getInt("threads", getDefaultNumberOfThreads(Runtime.getRuntime().availableProcessors())));
+        bandwidthLimitSpinner.setValue(prefs.getInt("bandwidthLimit", 0));
+        filesLimitSpinner.setValue(prefs.getInt("filesLimit", 0));
+        try {
+            copyOrderComboBox.setSelectedItem(CopyOrder.valueOf(prefs.get("copyOrder", CopyOrder.AS_SCANNED.name())));
+        } catch (IllegalArgumentException e) {
+            copyOrderComboBox.setSelectedItem(CopyOrder.AS_SCANNED);
+        }
     }
 
     private void savePrefs() {
@@ -192,6 +209,9 @@ public class UI {
 //        prefs.putBoolean("checkHash", checkHashCheckBox.isSelected());
         prefs.putBoolean("checkContent", checkContentCheckBox.isSelected());
         prefs.putInt("threads", numberOfThreadsToUse());
+        prefs.putInt("bandwidthLimit", (int) bandwidthLimitSpinner.getValue());
+        prefs.putInt("filesLimit", (int) filesLimitSpinner.getValue());
+        prefs.put("copyOrder", ((CopyOrder) copyOrderComboBox.getSelectedItem()).name());
     }
 
     public void onClose() {
@@ -221,6 +241,14 @@ public class UI {
         return (int) threadsToUseSpinner.getValue();
     }
 
+    private long bytesPerSecondLimit() {
+        return (int) bandwidthLimitSpinner.getValue() * 1024L * 1024L;
+    }
+
+    private long filesPerSecondLimit() {
+        return (int) filesLimitSpinner.getValue();
+    }
+
     private void updateGoStatus() {
         // a bit of indian code
         String s = sourceTextField.getText();
@@ -250,6 +278,7 @@ public class UI {
 //                checkHashCheckBox,
                 checkContentCheckBox,
                 threadsToUseSpinner,
+                copyOrderComboBox,
                 checkSizeCheckBox,
                 copyFromSourceRadioButton,
                 copySourceItselfRadioButton
@@ -274,6 +303,18 @@ public class UI {
         currentFilesPanel.setLayout(new BoxLayout(currentFilesPanel, BoxLayout.Y_AXIS));
 
         threadsToUseSpinner.addChangeListener(e -> updateCurrentFileProgressBars());
+
+        // not disabled while copying: limits can be changed on the fly
+        bandwidthLimitSpinner = new JSpinner(new SpinnerNumberModel(0, 0, 100 * 1024, 1));
+        bandwidthLimitSpinner.addChangeListener(e -> {
+            if (copyEngine != null && copyEngine.isRunning())
+                copyEngine.setBytesPerSecondLimit(bytesPerSecondLimit());
+        });
+        filesLimitSpinner = new JSpinner(new SpinnerNumberModel(0, 0, 1000 * 1000, 10));
+        filesLimitSpinner.addChangeListener(e -> {
+            if (copyEngine != null && copyEngine.isRunning())
+                copyEngine.setFilesPerSecondLimit(filesPerSecondLimit());
+        });
     }
 
     private void updateCurrentFileProgressBars() {
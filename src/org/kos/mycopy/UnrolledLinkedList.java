@@ -0,0 +1,494 @@
+package org.kos.mycopy;
+
+import java.util.AbstractSequentialList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Variant of {@link MyLinkedList} keeping elements in array-backed nodes, for lists of millions of elements.
+ * <p>
+ * A node holds up to {@code nodeCapacity} elements in {@code items[start, end)}, so the per-element overhead is one
+ * array slot instead of an entry object with three references, and iteration walks arrays instead of chasing a
+ * pointer per element. Adding and removing at either end is O(1), in the middle it costs shifting within one node,
+ * which is split in two when full. {@link #concatenate(UnrolledLinkedList)} splices node chains in O(1), partially
+ * filled nodes are kept as they are. Iterators are fail-fast.
+ */
+public class UnrolledLinkedList<E> extends AbstractSequentialList<E> implements List<E>, Deque<E> {
+    public static final int DEFAULT_NODE_CAPACITY = 64;
+
+    private final int nodeCapacity;
+    private final Node header = new Node(0);
+    private int size;
+
+    public UnrolledLinkedList() {
+        this(DEFAULT_NODE_CAPACITY);
+    }
+
+    public UnrolledLinkedList(int nodeCapacity) {
+        if (nodeCapacity < 2)
+            throw new IllegalArgumentException("Node capacity should be at least 2: " + nodeCapacity);
+        this.nodeCapacity = nodeCapacity;
+        header.next = header.previous = header;
+    }
+
+    public UnrolledLinkedList(Collection<? extends E> c) {
+        this();
+        addAll(c);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean add(E e) {
+        addLast(e);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        header.next = header.previous = header;
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public ListIterator<E> listIterator(int index) {
+        if (index < 0 || index > size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return new ListItr(index);
+    }
+
+    // Deque
+
+    @Override
+    public void addFirst(E e) {
+        Node first = header.next;
+        if (first == header || first.start == 0) {
+            first = new Node(nodeCapacity);
+            first.start = first.end = nodeCapacity;
+            linkBefore(first, header.next);
+        }
+        first.items[--first.start] = e;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public void addLast(E e) {
+        Node last = header.previous;
+        if (last == header || last.end == last.items.length) {
+            last = new Node(nodeCapacity);
+            linkBefore(last, header);
+        }
+        last.items[last.end++] = e;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public boolean offerFirst(E e) {
+        addFirst(e);
+        return true;
+    }
+
+    @Override
+    public boolean offerLast(E e) {
+        addLast(e);
+        return true;
+    }
+
+    @Override
+    public E removeFirst() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        return pollFirst();
+    }
+
+    @Override
+    public E removeLast() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        return pollLast();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E pollFirst() {
+        if (size == 0)
+            return null;
+        Node first = header.next;
+        E res = (E) first.items[first.start];
+        removeAt(first, first.start);
+        return res;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E pollLast() {
+        if (size == 0)
+            return null;
+        Node last = header.previous;
+        E res = (E) last.items[last.end - 1];
+        removeAt(last, last.end - 1);
+        return res;
+    }
+
+    @Override
+    public E getFirst() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        return peekFirst();
+    }
+
+    @Override
+    public E getLast() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        return peekLast();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E peekFirst() {
+        return size == 0 ? null : (E) header.next.items[header.next.start];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E peekLast() {
+        return size == 0 ? null : (E) header.previous.items[header.previous.end - 1];
+    }
+
+    @Override
+    public boolean removeFirstOccurrence(Object o) {
+        return remove(o);
+    }
+
+    @Override
+    public boolean removeLastOccurrence(Object o) {
+        ListIterator<E> it = listIterator(size);
+        while (it.hasPrevious()) {
+            E e = it.previous();
+            if (o == null ? e == null : o.equals(e)) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        return offerLast(e);
+    }
+
+    @Override
+    public E remove() {
+        return removeFirst();
+    }
+
+    @Override
+    public E poll() {
+        return pollFirst();
+    }
+
+    @Override
+    public E element() {
+        return getFirst();
+    }
+
+    @Override
+    public E peek() {
+        return peekFirst();
+    }
+
+    @Override
+    public void push(E e) {
+        addFirst(e);
+    }
+
+    @Override
+    public E pop() {
+        return removeFirst();
+    }
+
+    @Override
+    public Iterator<E> descendingIterator() {
+        ListIterator<E> it = listIterator(size);
+        return new Iterator<E>() {
+            public boolean hasNext() {
+                return it.hasPrevious();
+            }
+
+            public E next() {
+                return it.previous();
+            }
+
+            public void remove() {
+                it.remove();
+            }
+        };
+    }
+
+    /**
+     * Moves all elements of {@code list} to the end of this list in constant time, leaving {@code list} empty.
+     *
+     * @return this list
+     * @throws IllegalArgumentException if {@code list} is this list
+     */
+    public UnrolledLinkedList<E> concatenate(UnrolledLinkedList<E> list) {
+        if (list == this)
+            throw new IllegalArgumentException("Can't concatenate a list to itself");
+        if (list.size == 0)
+            return this;
+
+        Node first = list.header.next;
+        Node last = list.header.previous;
+        header.previous.next = first;
+        first.previous = header.previous;
+        last.next = header;
+        header.previous = last;
+        list.header.next = list.header.previous = list.header;
+
+        size += list.size;
+        modCount++;
+        list.size = 0;
+        list.modCount++;
+        return this;
+    }
+
+    // internals
+
+    private static final class Node {
+        final Object[] items;
+        int start;
+        int end;
+        Node next;
+        Node previous;
+
+        Node(int capacity) {
+            items = new Object[capacity];
+        }
+    }
+
+    private static final class Position {
+        final Node node;
+        final int index;
+
+        Position(Node node, int index) {
+            this.node = node;
+            this.index = index;
+        }
+    }
+
+    private static void linkBefore(Node node, Node successor) {
+        node.next = successor;
+        node.previous = successor.previous;
+        node.previous.next = node;
+        successor.previous = node;
+    }
+
+    private static void unlink(Node node) {
+        node.previous.next = node.next;
+        node.next.previous = node.previous;
+    }
+
+    /**
+     * Removes element at {@code items[index]} of {@code node}.
+     *
+     * @return position of the element that followed the removed one
+     */
+    private Position removeAt(Node node, int index) {
+        Object[] items = node.items;
+        Position res;
+        if (index == node.start) {
+            items[node.start++] = null;
+            res = new Position(node, node.start);
+        } else {
+            System.arraycopy(items, index + 1, items, index, node.end - index - 1);
+            items[--node.end] = null;
+            res = new Position(node, index);
+        }
+        if (node.start == node.end) {
+            unlink(node);
+            res = new Position(node.next, node.next.start);
+        }
+        size--;
+        modCount++;
+        return res;
+    }
+
+    /**
+     * Inserts {@code e} before the element at {@code items[index]} of {@code node}, or at the end of the list if
+     * {@code node} is the header.
+     *
+     * @return position of the inserted element
+     */
+    private Position insertAt(Node node, int index, E e) {
+        Node previous = node.previous;
+        if (index == node.start && previous != header && previous.end < previous.items.length) {
+            node = previous; // room at the end of the previous node
+            index = previous.end;
+        } else if (node == header) {
+            node = new Node(nodeCapacity);
+            linkBefore(node, header);
+            index = 0;
+        } else if (node.end == node.items.length && node.start == 0) {
+            // full: move the upper half to a new node
+            int mid = (node.start + node.end) >>> 1;
+            Node upper = new Node(node.items.length);
+            System.arraycopy(node.items, mid, upper.items, 0, node.end - mid);
+            Arrays.fill(node.items, mid, node.end, null);
+            upper.end = node.end - mid;
+            node.end = mid;
+            linkBefore(upper, node.next);
+            if (index > mid) {
+                node = upper;
+                index -= mid;
+            }
+        }
+
+        Object[] items = node.items;
+        if (node.end < items.length) {
+            System.arraycopy(items, index, items, index + 1, node.end - index);
+            node.end++;
+        } else {
+            System.arraycopy(items, node.start, items, node.start - 1, index - node.start);
+            node.start--;
+            index--;
+        }
+        items[index] = e;
+        size++;
+        modCount++;
+        return new Position(node, index);
+    }
+
+    private class ListItr implements ListIterator<E> {
+        // cursor is before items[index] of node, node may be the header at the end of the list
+        private Node node;
+        private int index;
+        private int nextIndex;
+        private Node lastNode;
+        private int lastIndex;
+        private boolean lastWasNext;
+        private int expectedModCount = modCount;
+
+        ListItr(int position) {
+            if (position == size) {
+                node = header;
+                index = 0;
+            } else if (position < size / 2) {
+                node = header.next;
+                int skipped = 0;
+                while (skipped + node.end - node.start <= position) {
+                    skipped += node.end - node.start;
+                    node = node.next;
+                }
+                index = node.start + position - skipped;
+            } else {
+                node = header;
+                int skipped = size;
+                do {
+                    node = node.previous;
+                    skipped -= node.end - node.start;
+                } while (skipped > position);
+                index = node.start + position - skipped;
+            }
+            nextIndex = position;
+        }
+
+        public boolean hasNext() {
+            return nextIndex != size;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            checkForComodification();
+            if (nextIndex == size)
+                throw new NoSuchElementException();
+            while (index == node.end) {
+                node = node.next;
+                index = node.start;
+            }
+            lastNode = node;
+            lastIndex = index;
+            lastWasNext = true;
+            index++;
+            nextIndex++;
+            return (E) node.items[lastIndex];
+        }
+
+        public boolean hasPrevious() {
+            return nextIndex != 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E previous() {
+            checkForComodification();
+            if (nextIndex == 0)
+                throw new NoSuchElementException();
+            while (index == node.start) {
+                node = node.previous;
+                index = node.end;
+            }
+            index--;
+            nextIndex--;
+            lastNode = node;
+            lastIndex = index;
+            lastWasNext = false;
+            return (E) node.items[index];
+        }
+
+        public int nextIndex() {
+            return nextIndex;
+        }
+
+        public int previousIndex() {
+            return nextIndex - 1;
+        }
+
+        public void remove() {
+            checkForComodification();
+            if (lastNode == null)
+                throw new IllegalStateException();
+            Position following = removeAt(lastNode, lastIndex);
+            node = following.node;
+            index = following.index;
+            if (lastWasNext)
+                nextIndex--;
+            lastNode = null;
+            expectedModCount++;
+        }
+
+        public void set(E e) {
+            if (lastNode == null)
+                throw new IllegalStateException();
+            checkForComodification();
+            lastNode.items[lastIndex] = e;
+        }
+
+        public void add(E e) {
+            checkForComodification();
+            Position inserted = insertAt(node, index, e);
+            node = inserted.node;
+            index = inserted.index + 1;
+            nextIndex++;
+            lastNode = null;
+            expectedModCount++;
+        }
+
+        final void checkForComodification() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+        }
+    }
+}
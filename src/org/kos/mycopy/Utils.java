@@ -12,6 +12,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.IntBinaryOperator;
 
 public class Utils {
     public static String bytesToHumanReadable(long bytes) {
@@ -27,6 +28,31 @@ public class Utils {
         return String.format("%d %s", res, names[names.length - 1]);
     }
 
+    /**
+     * Parses sizes like {@code 1024}, {@code 500K}, {@code 20MB} or {@code 1g}, suffixes are powers of 1024.
+     */
+    public static long humanReadableToBytes(String s) {
+        String str = s.trim().toUpperCase();
+        if (str.endsWith("B"))
+            str = str.substring(0, str.length() - 1);
+
+        long multiplier = 1;
+        String suffixes = "KMGT";
+        if (!str.isEmpty()) {
+            int idx = suffixes.indexOf(str.charAt(str.length() - 1));
+            if (idx >= 0) {
+                multiplier = 1L << (10 * (idx + 1));
+                str = str.substring(0, str.length() - 1);
+            }
+        }
+
+        try {
+            return Long.parseLong(str.trim()) * multiplier;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Can't parse size: " + s);
+        }
+    }
+
     public static String millisToHumanReadable(long ms) {
         int seconds = (int) ((ms / 1000) % 60);
         int minutes = (int) (((ms / 1000) / 60) % 60);
@@ -210,6 +236,39 @@ public class Utils {
         return null;
     }
 
+    /**
+     * Stable merge sort of row indices, so that large tables can be ordered without an object per row.
+     *
+     * @param comparator compares two indices, like {@link java.util.Comparator#compare}
+     */
+    public static void sortIndices(int[] indices, IntBinaryOperator comparator) {
+        int[] buffer = indices.clone();
+        mergeSort(buffer, indices, 0, indices.length, comparator);
+    }
+
+    // sorts src[from, to) into dst, both holding the same indices on entry
+    private static void mergeSort(int[] src, int[] dst, int from, int to, IntBinaryOperator comparator) {
+        if (to - from < 16) {
+            for (int i = from + 1; i < to; i++) {
+                int index = dst[i];
+                int j = i;
+                for (; j > from && comparator.applyAsInt(dst[j - 1], index) > 0; j--)
+                    dst[j] = dst[j - 1];
+                dst[j] = index;
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(dst, src, from, middle, comparator);
+        mergeSort(dst, src, middle, to, comparator);
+        for (int i = from, l = from, r = middle; i < to; i++) {
+            if (r >= to || l < middle && comparator.applyAsInt(src[l], src[r]) <= 0)
+                dst[i] = src[l++];
+            else
+                dst[i] = src[r++];
+        }
+    }
+
     public static class Pair<A, B> {
         public final A a;
         public final B b;
@@ -0,0 +1,69 @@
+package org.kos.mycopy;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Task deque of one worker. The owner pops at the head, other workers steal from the tail, and whole batches are
+ * spliced onto the tail in constant time with {@link MyLinkedList#concatenate(MyLinkedList)}.
+ * <p>
+ * Every deque has its own lock, held only for a few pointer updates, so workers contend only when stealing from the
+ * same victim. Size is mirrored in a volatile field, letting thieves skip empty deques without locking.
+ */
+public class WorkDeque<E> {
+    private final MyLinkedList<E> list = new MyLinkedList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile int size;
+
+    /**
+     * Owner side.
+     *
+     * @return next task, {@code null} if empty
+     */
+    public E pop() {
+        if (size == 0)
+            return null;
+        lock.lock();
+        try {
+            E res = list.pollFirst();
+            size = list.size();
+            return res;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Thief side.
+     *
+     * @return task the owner would get to last, {@code null} if empty
+     */
+    public E steal() {
+        if (size == 0)
+            return null;
+        lock.lock();
+        try {
+            E res = list.pollLast();
+            size = list.size();
+            return res;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves all tasks of {@code batch} to the tail, leaving {@code batch} empty.
+     */
+    public void addBatch(MyLinkedList<E> batch) {
+        lock.lock();
+        try {
+            list.concatenate(batch);
+            size = list.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+}
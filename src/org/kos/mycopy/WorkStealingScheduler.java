@@ -0,0 +1,174 @@
+package org.kos.mycopy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Runs tasks on a fixed set of worker threads, each with its own {@link WorkDeque}.
+ * <p>
+ * Tasks arrive in batches (e.g. files of one directory), each batch goes to the least loaded worker as a whole,
+ * keeping related tasks together. Workers run their own tasks first and steal from others when out of work. The
+ * number of queued tasks is bounded, {@link #submit(MyLinkedList)} blocks once the limit is reached.
+ */
+public class WorkStealingScheduler<E> {
+    private final List<WorkDeque<E>> deques = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final Consumer<E> task;
+    private final int maxQueued;
+    private final Semaphore space;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final ReentrantLock idleLock = new ReentrantLock();
+    private final Condition workAvailable = idleLock.newCondition();
+    private volatile boolean finished;
+    private volatile boolean stopped;
+
+    public WorkStealingScheduler(String name, int threads, int maxQueued, Consumer<E> task) {
+        this.task = task;
+        this.maxQueued = maxQueued;
+        this.space = new Semaphore(maxQueued);
+        for (int i = 0; i < threads; i++) {
+            int index = i;
+            deques.add(new WorkDeque<>());
+            workers.add(new Thread(() -> work(index), name + " " + (i + 1)));
+        }
+    }
+
+    public void start() {
+        for (Thread worker : workers)
+            worker.start();
+    }
+
+    /**
+     * Hands a batch of at most {@code maxQueued} tasks to a worker, leaving {@code batch} empty.
+     *
+     * @return {@code false} if interrupted while waiting for queue space or stopped, the batch is not submitted then
+     */
+    public boolean submit(MyLinkedList<E> batch) {
+        int n = batch.size();
+        if (n == 0)
+            return true;
+        if (n > maxQueued)
+            throw new IllegalArgumentException("Batch of " + n + " tasks exceeds queue limit of " + maxQueued);
+        try {
+            space.acquire(n);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (stopped)
+            return false;
+
+        WorkDeque<E> target = deques.get(0);
+        for (WorkDeque<E> deque : deques)
+            if (deque.size() < target.size())
+                target = deque;
+        // counted before being visible, so that idle workers never miss it
+        queued.addAndGet(n);
+        target.addBatch(batch);
+        signalWorkers();
+        return true;
+    }
+
+    /**
+     * Lets workers run everything submitted so far and waits for them to exit.
+     *
+     * @return {@code false} if the scheduler was stopped, by {@link #stop()} or by a failed task, so some tasks may
+     * not have run
+     */
+    public boolean finish() throws InterruptedException {
+        finished = true;
+        signalWorkers();
+        for (Thread worker : workers)
+            worker.join();
+        return !stopped;
+    }
+
+    /**
+     * Makes workers exit once their current tasks are done, queued tasks are dropped. Doesn't wait.
+     */
+    public void stop() {
+        stopped = true;
+        // wakes up submitters waiting for space that won't be freed anymore
+        space.release(maxQueued);
+        signalWorkers();
+    }
+
+    /**
+     * Stops the scheduler, interrupts the tasks being run and waits for all workers to exit, so nothing runs once this
+     * returns. Not to be called from a worker. Waits even if the calling thread is interrupted, its interrupted status
+     * is kept.
+     */
+    public void stopAndWait() {
+        stop();
+        for (Thread worker : workers)
+            worker.interrupt();
+        boolean interrupted = false;
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @return {@code true} if {@link #stop()} was called or a task failed, some tasks may not have run then
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    private void work(int index) {
+        WorkDeque<E> own = deques.get(index);
+        while (!stopped) {
+            E next = own.pop();
+            for (int i = 1; next == null && i < deques.size(); i++)
+                next = deques.get((index + i) % deques.size()).steal();
+
+            if (next != null) {
+                queued.decrementAndGet();
+                space.release();
+                try {
+                    task.accept(next);
+                } catch (RuntimeException | Error e) {
+                    // left to the thread's uncaught exception handler, other workers drop the remaining tasks
+                    stop();
+                    throw e;
+                }
+                continue;
+            }
+
+            idleLock.lock();
+            try {
+                if (queued.get() <= 0) {
+                    if (finished)
+                        return;
+                    if (!stopped)
+                        workAvailable.awaitUninterruptibly();
+                }
+            } finally {
+                idleLock.unlock();
+            }
+        }
+    }
+
+    private void signalWorkers() {
+        idleLock.lock();
+        try {
+            workAvailable.signalAll();
+        } finally {
+            idleLock.unlock();
+        }
+    }
+}
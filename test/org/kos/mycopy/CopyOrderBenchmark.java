@@ -0,0 +1,130 @@
+package org.kos.mycopy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+/**
+ * Copy time of a tree of small files in every {@link CopyOrder}, with the source cold in the page cache.
+ * <p>
+ * Files are created in random order across the directories, so that inode and on-disk order differ from the scan
+ * order the way they do in a tree that grew over time. Before every copy dirty data is synced and the page, dentry
+ * and inode caches are dropped through {@code /proc/sys/vm/drop_caches}, which needs root; otherwise copies run with
+ * a warm cache and only show the orders' CPU cost. Sort time is measured separately on the scanned table.
+ * <p>
+ * Run with {@code java -cp <classes> org.kos.mycopy.CopyOrderBenchmark [dir [files [dirs [threads]]]]}, defaults
+ * {@code java.io.tmpdir}, which must be on the disk under test, 20000, 200 and 2.
+ */
+public class CopyOrderBenchmark {
+    private static final File DROP_CACHES = new File("/proc/sys/vm/drop_caches");
+    private static final int MAX_FILE_SIZE = 64 * 1024;
+    private static final int RUNS = 3;
+
+    private final File source;
+    private final File destination;
+    private final int threads;
+
+    private CopyOrderBenchmark(File root, int threads) {
+        source = new File(root, "src");
+        destination = new File(root, "dst");
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int dirs = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+        File root = Files.createTempDirectory(dir.toPath(), "mycopy-order").toFile();
+        try {
+            CopyOrderBenchmark benchmark = new CopyOrderBenchmark(root, threads);
+            benchmark.generate(files, dirs);
+            boolean cold = DROP_CACHES.canWrite();
+            System.out.println(String.format("%d files in %d directories, %d threads, %s cache, median of %d runs",
+                    files, dirs, threads, cold ? "cold" : "warm (can't drop caches)", RUNS));
+            System.out.println(String.format("%-16s %10s %10s %12s", "order", "sort ms", "copy s", "files/s"));
+            for (CopyOrder order : CopyOrder.values())
+                benchmark.measure(order, cold);
+        } finally {
+            delete(root);
+        }
+        System.exit(0); // copy engine's executor threads linger
+    }
+
+    private void generate(int files, int dirs) throws IOException {
+        Random random = new Random(27);
+        for (int i = 0; i < dirs; i++)
+            new File(source, "d" + i).mkdirs();
+        byte[] data = new byte[MAX_FILE_SIZE];
+        for (int i = 0; i < files; i++) {
+            random.nextBytes(data);
+            File file = new File(source, "d" + random.nextInt(dirs) + File.separator + "f" + i);
+            Files.write(file.toPath(), Arrays.copyOf(data, 1 + random.nextInt(MAX_FILE_SIZE)));
+        }
+    }
+
+    private void measure(CopyOrder order, boolean cold) throws Exception {
+        // sorting alone, on a warm scan
+        FileTable table = new FilesCollector(source, destination, false, s -> {
+        }, false, null, new PathFilter(Collections.emptyList()), null, Integer.MAX_VALUE).collectListOfFiles();
+        long sortStarted = System.nanoTime();
+        order.sort(table);
+        long sortMillis = (System.nanoTime() - sortStarted) / 1_000_000;
+
+        long[] nanos = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            delete(destination);
+            destination.mkdirs();
+            if (cold)
+                dropCaches();
+            long started = System.nanoTime();
+            copy(order);
+            nanos[run] = System.nanoTime() - started;
+        }
+        Arrays.sort(nanos);
+        long median = nanos[RUNS / 2];
+        System.out.println(String.format("%-16s %10d %10.2f %12d", order, sortMillis, median / 1e9,
+                table.size() * 1_000_000_000L / median));
+    }
+
+    private void copy(CopyOrder order) throws InterruptedException {
+        CopyOptions options = new CopyOptions();
+        options.setCopyOrder(order);
+        ProgressListener[] progressListeners = new ProgressListener[threads];
+        StatusListener[] statusListeners = new StatusListener[threads];
+        for (int i = 0; i < threads; i++) {
+            progressListeners[i] = p -> {
+            };
+            statusListeners[i] = s -> {
+            };
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        new CopyEngine(p -> {
+        }, s -> {
+        }, progressListeners, statusListeners, s -> {
+        }, done::countDown, source, destination, false, CopyStrategies.ALWAYS_COPY_STRATEGY, threads, options);
+        done.await();
+    }
+
+    private static void dropCaches() throws IOException, InterruptedException {
+        new ProcessBuilder("sync").inheritIO().start().waitFor();
+        Files.write(DROP_CACHES.toPath(), "3".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void delete(File file) throws IOException {
+        if (!file.exists())
+            return;
+        try (Stream<Path> paths = Files.walk(file.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
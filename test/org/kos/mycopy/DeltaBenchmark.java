@@ -0,0 +1,161 @@
+package org.kos.mycopy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+/**
+ * Bytes that went over the connection, both ways, and CPU cost of sending a partly changed file as a delta ({@link DeltaEncoder}) versus sending
+ * it whole, plain and compressed. Both ends run in this JVM over localhost, so CPU time is the sum of the sender's
+ * and the receiver's, signature computation and file rebuilding included.
+ * <p>
+ * A random file gets {@code edits} insertions and as many deletions of up to 2 KB at random offsets. Before every
+ * run the receiver gets the old version back. Every run is repeated and the median is reported.
+ * <p>
+ * Run with {@code java -cp <classes> org.kos.mycopy.DeltaBenchmark [sizeMB [edits [runs]]]}, defaults 200, 20, 3.
+ */
+public class DeltaBenchmark {
+    private static final int THREADS = 2;
+
+    private final File source;
+    private final File destination;
+    private final File oldVersion;
+    private final TransportReceiver receiver;
+
+    private DeltaBenchmark(File root) throws IOException {
+        source = new File(root, "src");
+        destination = new File(root, "dst");
+        oldVersion = new File(root, "old");
+        receiver = new TransportReceiver(InetAddress.getLoopbackAddress(), 0, destination,
+                CopyStrategies.ALWAYS_COPY_STRATEGY, THREADS);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int edits = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        File root = Files.createTempDirectory("mycopy-delta").toFile();
+        try {
+            DeltaBenchmark benchmark = new DeltaBenchmark(root);
+            benchmark.generate(sizeMB, edits);
+            benchmark.receiver.start();
+            try {
+                System.out.println(String.format("%d MB file, %d insertions and %d deletions of up to 2 KB, " +
+                        "median of %d runs", sizeMB, edits, edits, runs));
+                System.out.println(String.format("%-12s %12s %10s %10s", "mode", "wire bytes", "CPU ms", "wall ms"));
+                benchmark.measure("full", false, false, runs);
+                benchmark.measure("compressed", true, false, runs);
+                benchmark.measure("delta", false, true, runs);
+            } finally {
+                benchmark.receiver.stop();
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(root.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private void generate(int sizeMB, int edits) throws IOException {
+        Random random = new Random(50);
+        byte[] old = new byte[sizeMB * 1024 * 1024];
+        random.nextBytes(old);
+        Files.write(oldVersion.toPath(), old);
+
+        ByteArrayOutputStream changed = new ByteArrayOutputStream(old.length + edits * 2048);
+        long[] offsets = new long[2 * edits];
+        for (int i = 0; i < offsets.length; i++)
+            offsets[i] = (long) (random.nextDouble() * old.length);
+        Arrays.sort(offsets);
+        int position = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            int offset = (int) Math.max(position, offsets[i]);
+            changed.write(old, position, offset - position);
+            int length = 1 + random.nextInt(2048);
+            if (i % 2 == 0) {
+                byte[] inserted = new byte[length];
+                random.nextBytes(inserted);
+                changed.write(inserted, 0, length);
+                position = offset;
+            } else {
+                position = Math.min(old.length, offset + length);
+            }
+        }
+        changed.write(old, position, old.length - position);
+        source.mkdirs();
+        Files.write(new File(source, "file").toPath(), changed.toByteArray());
+    }
+
+    private void measure(String mode, boolean compress, boolean delta, int runs) throws Exception {
+        long[] bytes = new long[runs];
+        long[] cpu = new long[runs];
+        long[] wall = new long[runs];
+        for (int run = 0; run < runs; run++) {
+            destination.mkdirs();
+            Files.copy(oldVersion.toPath(), new File(destination, "file").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+
+            // both ways as they go over the socket: compressed data, signatures and acknowledgements included
+            long bytesBefore = receiver.getWireBytes();
+            long cpuBefore = processCpuNanos();
+            long started = System.nanoTime();
+            send(compress, delta);
+            wall[run] = System.nanoTime() - started;
+            cpu[run] = processCpuNanos() - cpuBefore;
+            bytes[run] = receiver.getWireBytes() - bytesBefore;
+
+            if (!Utils.compare(new File(source, "file"), new File(destination, "file")))
+                throw new AssertionError(mode + ": received file differs");
+        }
+        System.out.println(String.format("%-12s %12d %10d %10d", mode, median(bytes), median(cpu) / 1_000_000,
+                median(wall) / 1_000_000));
+    }
+
+    private void send(boolean compress, boolean delta) throws InterruptedException {
+        CopyOptions options = new CopyOptions();
+        options.setRemoteAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getPort()));
+        options.setCompress(compress);
+        options.setDelta(delta);
+        ProgressListener[] progressListeners = new ProgressListener[THREADS];
+        StatusListener[] statusListeners = new StatusListener[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            progressListeners[i] = p -> {
+            };
+            statusListeners[i] = s -> {
+            };
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        new CopyEngine(p -> {
+        }, s -> {
+        }, progressListeners, statusListeners, s -> {
+        }, done::countDown, source, new File("localhost"), false, CopyStrategies.ALWAYS_COPY_STRATEGY, THREADS,
+                options);
+        done.await();
+    }
+
+    /**
+     * @return CPU time of the whole process, JIT and GC included
+     */
+    private static long processCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
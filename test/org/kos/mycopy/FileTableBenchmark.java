@@ -0,0 +1,134 @@
+package org.kos.mycopy;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Heap footprint and GC cost of a multi-million entry {@link FileTable} against the {@code List<FileToCopy>} it
+ * replaced.
+ * <p>
+ * Both hold the same synthetic tree: {@code filesPerDir} files per directory, directories three levels deep, file
+ * names repeating across directories like {@code index.html} does. For each representation the harness reports
+ * <ul>
+ * <li>heap retained by the filled structure, measured after full GCs</li>
+ * <li>time to fill it and the GC time spent meanwhile, per the collectors' MX beans</li>
+ * <li>duration of a full GC with the structure alive, which has to trace every object it holds</li>
+ * <li>GC time while the job churns through {@code churnMB} of short-lived garbage, the way copying does</li>
+ * </ul>
+ * Run with {@code java -Xmx3g -cp <classes> org.kos.mycopy.FileTableBenchmark [files [filesPerDir [churnMB]]]},
+ * defaults 3000000, 100 and 4096. The list needs about 320 bytes per file, so give the JVM enough heap.
+ */
+public class FileTableBenchmark {
+    private static final File SOURCE_ROOT = new File("/data/projects/source");
+    private static final File DESTINATION_ROOT = new File("/backup/projects/destination");
+    private static final int FANOUT = 20;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 3_000_000;
+        int filesPerDir = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int churnMB = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+
+        System.out.println(String.format("%d files, %d per directory, %d MB max heap, %s", files, filesPerDir,
+                Runtime.getRuntime().maxMemory() / (1024 * 1024), collectorNames()));
+        System.out.println(String.format("%-16s %10s %10s %10s %10s %10s %12s", "structure", "heap MB",
+                "bytes/file", "fill ms", "fill GC ms", "full GC ms", "churn GC ms"));
+        measure("FileTable", files, filesPerDir, churnMB, true);
+        measure("List<FileToCopy>", files, filesPerDir, churnMB, false);
+    }
+
+    private static void measure(String name, int files, int filesPerDir, int churnMB, boolean table) {
+        long before = usedHeap();
+        long gcBefore = gcMillis();
+        long started = System.nanoTime();
+        Object structure = table ? fillTable(files, filesPerDir) : fillList(files, filesPerDir);
+        long fillMillis = (System.nanoTime() - started) / 1_000_000;
+        long fillGcMillis = gcMillis() - gcBefore;
+
+        long retained = usedHeap() - before;
+
+        long fullGcStarted = System.nanoTime();
+        System.gc();
+        long fullGcMillis = (System.nanoTime() - fullGcStarted) / 1_000_000;
+
+        long churnGcBefore = gcMillis();
+        churn(churnMB);
+        long churnGcMillis = gcMillis() - churnGcBefore;
+
+        System.out.println(String.format("%-16s %10d %10.1f %10d %10d %10d %12d", name, retained / (1024 * 1024),
+                (double) retained / files, fillMillis, fillGcMillis, fullGcMillis, churnGcMillis));
+        sink = structure;
+        sink = null;
+    }
+
+    private static FileTable fillTable(int files, int filesPerDir) {
+        FileTable table = new FileTable(SOURCE_ROOT, DESTINATION_ROOT);
+        int level1 = FileTable.ROOT;
+        int level2 = FileTable.ROOT;
+        int dir = FileTable.ROOT;
+        for (int i = 0; i < files; i++) {
+            if (i % filesPerDir == 0) {
+                int d = i / filesPerDir;
+                if (d % (FANOUT * FANOUT) == 0)
+                    level1 = table.addDirectory(FileTable.ROOT, "level1-" + d / (FANOUT * FANOUT));
+                if (d % FANOUT == 0)
+                    level2 = table.addDirectory(level1, "level2-" + d / FANOUT % FANOUT);
+                dir = table.addDirectory(level2, "dir-" + d);
+            }
+            table.add(dir, fileName(i % filesPerDir), i, i);
+        }
+        table.trimToSize();
+        return table;
+    }
+
+    private static List<FileToCopy> fillList(int files, int filesPerDir) {
+        List<FileToCopy> list = new ArrayList<>();
+        String dir = "";
+        for (int i = 0; i < files; i++) {
+            if (i % filesPerDir == 0) {
+                int d = i / filesPerDir;
+                dir = "level1-" + d / (FANOUT * FANOUT) + File.separator + "level2-" + d / FANOUT % FANOUT +
+                        File.separator + "dir-" + d;
+            }
+            String relative = dir + File.separator + fileName(i % filesPerDir);
+            list.add(new FileToCopy(new File(SOURCE_ROOT, relative), new File(DESTINATION_ROOT, relative), i));
+        }
+        ((ArrayList<FileToCopy>) list).trimToSize();
+        return list;
+    }
+
+    private static String fileName(int n) {
+        return "file-" + n + ".dat";
+    }
+
+    // short-lived allocations, as made while copying
+    private static void churn(int mb) {
+        for (long allocated = 0; allocated < (long) mb << 20; allocated += 64 * 1024)
+            sink = new byte[64 * 1024];
+        sink = null;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(0, gc.getCollectionTime());
+        return millis;
+    }
+
+    private static String collectorNames() {
+        StringBuilder sb = new StringBuilder();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            sb.append(sb.length() == 0 ? "" : ", ").append(gc.getName());
+        return sb.toString();
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
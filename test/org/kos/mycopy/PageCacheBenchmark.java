@@ -0,0 +1,226 @@
+package org.kos.mycopy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Effect of {@link CopyOptions#isDropCache()} on co-located workloads: a copy larger than the available memory
+ * runs while a reader thread keeps reading random blocks of a "hot" file, and after a "warm" file, standing for data
+ * used a moment ago like a build's output, was read once. Reported for copies with and without dropping:
+ * <ul>
+ * <li>hit rates: share of the hot and warm files' pages still cached after the copy, per {@code fincore}, i.e. the
+ * chance that the workload's next read is served from memory</li>
+ * <li>rate of the hot workload's random 64 KB reads during the copy</li>
+ * <li>time to read the whole warm file once the copy is done</li>
+ * </ul>
+ * Sources are dropped from the cache before every copy, so each starts from the same state. Needs {@code fincore}
+ * from util-linux for the hit rate and GNU {@code dd} for dropping, like {@link PageCacheDropper}.
+ * <p>
+ * Run with {@code java -cp <classes> org.kos.mycopy.PageCacheBenchmark [dir [copyMB [hotMB]]]}. By default files
+ * go to {@code java.io.tmpdir}, which must be on a disk rather than tmpfs, the copy is 1.5 times and the hot file
+ * and the warm file 1/8 of {@code MemAvailable} each.
+ */
+public class PageCacheBenchmark {
+    private static final int FILE_MB = 256;
+    private static final int THREADS = 2;
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final File root;
+    private final File source;
+    private final File destination;
+    private final File hot;
+    private final File warm;
+
+    private PageCacheBenchmark(File root) {
+        this.root = root;
+        source = new File(root, "src");
+        destination = new File(root, "dst");
+        hot = new File(root, "hot");
+        warm = new File(root, "warm");
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        long available = memAvailableMB();
+        int copyMB = args.length > 1 ? Integer.parseInt(args[1]) : (int) (available * 3 / 2);
+        int hotMB = args.length > 2 ? Integer.parseInt(args[2]) : (int) (available / 8);
+        if (copyMB <= 0 || hotMB <= 0) {
+            System.out.println("Can't read MemAvailable from /proc/meminfo, give copyMB and hotMB");
+            System.exit(1);
+        }
+
+        PageCacheBenchmark benchmark = new PageCacheBenchmark(Files.createTempDirectory(dir.toPath(),
+                "mycopy-cache").toFile());
+        try {
+            System.out.println(String.format("Generating %d MB to copy, %d MB hot and warm files, %d MB available",
+                    copyMB, hotMB, available));
+            benchmark.generate(copyMB, hotMB);
+            System.out.println(String.format("%-12s %9s %9s %14s %14s %8s", "mode", "hot hits", "warm hits",
+                    "hot reads", "warm re-read", "copy s"));
+            benchmark.measure(false);
+            benchmark.measure(true);
+        } finally {
+            benchmark.delete();
+        }
+        System.exit(0); // copy engine's executor threads linger
+    }
+
+    private void generate(int copyMB, int hotMB) throws IOException {
+        Random random = new Random(47);
+        byte[] block = new byte[1024 * 1024];
+        write(hot, hotMB, random, block);
+        write(warm, hotMB, random, block);
+        for (int i = 0; i * FILE_MB < copyMB; i++)
+            write(new File(source, "f" + i), Math.min(FILE_MB, copyMB - i * FILE_MB), random, block);
+    }
+
+    private void measure(boolean dropCache) throws Exception {
+        delete(destination);
+        try (Stream<Path> paths = Files.list(source.toPath())) {
+            for (Path path : (Iterable<Path>) paths::iterator)
+                PageCacheDropper.drop(path.toFile(), path.toFile(), Files.size(path));
+        }
+        PageCacheDropper.drop(warm, warm, warm.length());
+        readWhole(hot);
+        readWhole(hot);
+        readWhole(warm);
+
+        // the co-located workload
+        AtomicLong reads = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            ByteBuffer buf = ByteBuffer.allocateDirect(READ_SIZE);
+            Random random = new Random(1);
+            try (FileChannel in = new RandomAccessFile(hot, "r").getChannel()) {
+                long blocks = in.size() / READ_SIZE;
+                while (!stop.get()) {
+                    buf.clear();
+                    in.read(buf, (long) (random.nextDouble() * blocks) * READ_SIZE);
+                    reads.incrementAndGet();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "co-located reader");
+
+        CopyOptions options = new CopyOptions();
+        options.setDropCache(dropCache);
+        long started = System.nanoTime();
+        reader.start();
+        copy(options);
+        long copyNanos = System.nanoTime() - started;
+        stop.set(true);
+        reader.join();
+
+        String hotHits = percent(residentShare(hot));
+        String warmHits = percent(residentShare(warm));
+        long rereadStarted = System.nanoTime();
+        readWhole(warm);
+        long rereadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - rereadStarted);
+
+        System.out.println(String.format("%-12s %9s %9s %12d/s %11d ms %8.1f", dropCache ? "drop-cache" : "default",
+                hotHits, warmHits, reads.get() * 1_000_000_000L / copyNanos, rereadMillis, copyNanos / 1e9));
+    }
+
+    private void copy(CopyOptions options) throws InterruptedException {
+        ProgressListener[] progressListeners = new ProgressListener[THREADS];
+        StatusListener[] statusListeners = new StatusListener[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            progressListeners[i] = p -> {
+            };
+            statusListeners[i] = s -> {
+            };
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        new CopyEngine(p -> {
+        }, s -> {
+        }, progressListeners, statusListeners, s -> {
+        }, done::countDown, source, destination, false, CopyStrategies.ALWAYS_COPY_STRATEGY, THREADS, options);
+        done.await();
+    }
+
+    private static String percent(double share) {
+        return share < 0 ? "?" : String.format("%.1f%%", share * 100);
+    }
+
+    /**
+     * @return share of the file's pages in the page cache, {@code -1} if {@code fincore} can't tell
+     */
+    private static double residentShare(File file) {
+        try {
+            Process p = new ProcessBuilder("fincore", "--bytes", "--noheadings", "--output", "RES,SIZE",
+                    file.getAbsolutePath()).redirectErrorStream(true).start();
+            List<String> lines;
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(),
+                    StandardCharsets.US_ASCII))) {
+                lines = r.lines().collect(Collectors.toList());
+            }
+            if (p.waitFor() != 0 || lines.isEmpty())
+                return -1;
+            String[] columns = lines.get(0).trim().split("\\s+");
+            return (double) Long.parseLong(columns[0]) / Long.parseLong(columns[1]);
+        } catch (IOException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    private static void readWhole(File file) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(1024 * 1024);
+        try (FileChannel in = new RandomAccessFile(file, "r").getChannel()) {
+            while (in.read(buf) > 0)
+                buf.clear();
+        }
+    }
+
+    private static void write(File file, int mb, Random random, byte[] block) throws IOException {
+        file.getParentFile().mkdirs();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (int i = 0; i < mb; i++) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        }
+    }
+
+    private static long memAvailableMB() throws IOException {
+        File meminfo = new File("/proc/meminfo");
+        if (!meminfo.exists())
+            return -1;
+        for (String line : Files.readAllLines(meminfo.toPath(), StandardCharsets.US_ASCII))
+            if (line.startsWith("MemAvailable:"))
+                return Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024;
+        return -1;
+    }
+
+    private void delete() throws IOException {
+        delete(root);
+    }
+
+    private static void delete(File file) throws IOException {
+        if (!file.exists())
+            return;
+        try (Stream<Path> paths = Files.walk(file.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package org.kos.mycopy;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+/**
+ * Round trip of {@link TransportSender} and {@link TransportReceiver} over localhost with both ends in this JVM:
+ * sends a generated tree, sends it again, then sends modified files plain, compressed and as deltas, comparing
+ * the trees after every run. Also offers paths leading outside of the destination, which must fail. Exits with
+ * status 1 on the first difference.
+ * <p>
+ * Run with {@code java -cp <classes> org.kos.mycopy.TransportLoopbackCheck}.
+ */
+public class TransportLoopbackCheck {
+    private static final int THREADS = 2;
+
+    private final Random random = new Random(49);
+    private final File source;
+    private final File destination;
+    private final TransportReceiver receiver;
+
+    private TransportLoopbackCheck(File source, File destination) throws IOException {
+        this.source = source;
+        this.destination = destination;
+        receiver = new TransportReceiver(InetAddress.getLoopbackAddress(), 0, destination,
+                CopyStrategies.SIZE_STRATEGY, THREADS);
+    }
+
+    public static void main(String[] args) throws Exception {
+        File root = Files.createTempDirectory("mycopy-loopback").toFile();
+        boolean passed = false;
+        try {
+            TransportLoopbackCheck check = new TransportLoopbackCheck(new File(root, "src"), new File(root, "dst"));
+            check.run();
+            passed = true;
+        } catch (AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+        } finally {
+            delete(root);
+        }
+        if (!passed)
+            System.exit(1);
+        System.out.println("OK");
+    }
+
+    private void run() throws Exception {
+        int files = generate();
+        receiver.start();
+        try {
+            send(false, false);
+            verify("first run");
+            expect(receiver.getFilesReceived() == files, files + " files received, got " + receiver.getFilesReceived());
+
+            int received = receiver.getFilesReceived();
+            send(false, false);
+            expect(receiver.getFilesReceived() == received, "unchanged files sent again");
+
+            // grown and missing files, small ones buffered whole by the receiver and large streamed ones
+            append(new File(source, "d0/f0"), 10);
+            append(new File(source, "big1"), 1000);
+            Files.delete(new File(destination, "d1/f1").toPath());
+            Files.delete(new File(destination, "big2").toPath());
+            send(false, false);
+            verify("plain resend");
+            expect(receiver.getFilesReceived() == received + 4, "4 files resent");
+
+            append(new File(source, "d2/f2"), 10);
+            Files.delete(new File(destination, "big0").toPath());
+            send(true, false);
+            verify("compressed resend");
+
+            // a few bytes inserted in the middle of large files only need a couple of blocks sent
+            long bytesBefore = receiver.getBytesReceived();
+            insert(new File(source, "big1"), 1_500_000, 100);
+            insert(new File(source, "big2"), 10, 5000);
+            send(true, true);
+            verify("delta resend");
+            long sent = receiver.getBytesReceived() - bytesBefore;
+            expect(sent < 200_000, "deltas of 5100 inserted bytes took " + sent + " bytes");
+            System.out.println("Delta of two modified large files: " + sent + " bytes of data received");
+
+            // what a malicious sender could offer, with the separator of this platform
+            for (String path : new String[]{"../evil", "d0/../../evil", "C:" + File.separator + "evil",
+                    ".." + File.separator + ".." + File.separator + "evil", "d0" + File.separator + ".." +
+                    File.separator + ".." + File.separator + "evil"})
+                offerOutside(path);
+            expect(!new File(destination.getParentFile(), "evil").exists() &&
+                    !new File(destination.getParentFile().getParentFile(), "evil").exists(),
+                    "file written outside of the destination");
+        } finally {
+            receiver.stop();
+        }
+    }
+
+    private int generate() throws IOException {
+        int count = 0;
+        for (int d = 0; d < 20; d++) {
+            File dir = new File(source, "d" + d);
+            for (int f = 0; f < 30; f++) {
+                // empty files, files of several frames and files larger than the receiver buffers whole
+                int size = f == 0 ? 0 : f % 10 == 9 ? 300_000 + random.nextInt(100_000) : random.nextInt(20_000);
+                write(new File(dir, "f" + f), size);
+                count++;
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            write(new File(source, "big" + i), 3_000_000 + random.nextInt(1_000_000));
+            count++;
+        }
+        return count;
+    }
+
+    private void send(boolean compress, boolean delta) throws InterruptedException {
+        CopyOptions options = new CopyOptions();
+        options.setRemoteAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getPort()));
+        options.setCompress(compress);
+        options.setDelta(delta);
+        ProgressListener[] progressListeners = new ProgressListener[THREADS];
+        StatusListener[] statusListeners = new StatusListener[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            progressListeners[i] = p -> {
+            };
+            statusListeners[i] = s -> {
+            };
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        new CopyEngine(p -> {
+        }, s -> {
+        }, progressListeners, statusListeners, s -> {
+        }, done::countDown, source, new File("localhost"), false, CopyStrategies.ALWAYS_COPY_STRATEGY, THREADS,
+                options);
+        done.await();
+    }
+
+    /**
+     * Offers an empty file at {@code path} speaking the protocol directly, as the sender itself never produces such
+     * paths, and expects it to fail.
+     */
+    private void offerOutside(String path) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), receiver.getPort())) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeInt(Transport.MAGIC);
+            out.writeInt(Transport.VERSION);
+            out.writeInt(0);
+            out.writeByte(Transport.OFFER);
+            out.writeInt(1);
+            out.writeUTF(path);
+            out.writeLong(0);
+            out.writeLong(0);
+            out.writeByte(Transport.OFFERS_END);
+            out.flush();
+            byte answer = in.readByte();
+            expect(in.readInt() == 1, path + ": answer for another file");
+            // refused paths are wanted, to be reported as failed
+            expect(answer == Transport.WANT, path + ": unexpected answer " + answer);
+
+            out.writeByte(Transport.FILE);
+            out.writeInt(1);
+            out.writeLong(0);
+            out.writeByte(Transport.FILE_END);
+            out.writeInt(1);
+            out.writeBoolean(true);
+            out.writeByte(Transport.FINISH);
+            out.flush();
+            answer = in.readByte();
+            expect(answer == Transport.FAILED, path + ": answered " + answer + " instead of FAILED");
+            expect(in.readInt() == 1, path + ": answer for another file");
+            System.out.println(path + ": " + in.readUTF());
+            expect(in.readByte() == Transport.FINISHED, path + ": not finished");
+        }
+    }
+
+    private void verify(String step) throws IOException {
+        try (Stream<Path> paths = Files.walk(source.toPath())) {
+            for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+                File dst = destination.toPath().resolve(source.toPath().relativize(path)).toFile();
+                expect(dst.isFile() && Utils.compare(path.toFile(), dst), step + ": " + dst + " differs");
+            }
+        }
+        try (Stream<Path> paths = Files.walk(destination.toPath())) {
+            expect(paths.noneMatch(p -> p.getFileName().toString().endsWith(".mycopy-tmp")),
+                    step + ": temporary file left behind");
+        }
+    }
+
+    private void write(File file, int size) throws IOException {
+        file.getParentFile().mkdirs();
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        Files.write(file.toPath(), data);
+    }
+
+    private void append(File file, int bytes) throws IOException {
+        insert(file, file.length(), bytes);
+    }
+
+    private void insert(File file, long position, int bytes) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        byte[] inserted = new byte[bytes];
+        random.nextBytes(inserted);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(position);
+            out.write(inserted);
+            out.write(data, (int) position, data.length - (int) position);
+        }
+    }
+
+    private static void expect(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    private static void delete(File root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.kos.mycopy;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Memory per element and iteration speed of {@link UnrolledLinkedList} against {@link MyLinkedList}.
+ * <p>
+ * All elements are one shared object, so memory is the lists' own overhead: heap used after a full GC with the list
+ * alive minus heap used without it. Iteration time is per element of a full pass with the list's iterator, median
+ * of {@link #RUNS} passes after {@link #WARMUP_RUNS} unmeasured ones. Numbers depend on the JVM's object layout,
+ * compressed oops in particular.
+ * <p>
+ * Run with {@code java -cp <classes> org.kos.mycopy.UnrolledLinkedListBenchmark [elements [capacity...]]},
+ * defaults 5000000 and node capacities 16 64 256.
+ */
+public class UnrolledLinkedListBenchmark {
+    private static final int WARMUP_RUNS = 5;
+    private static final int RUNS = 9;
+    private static final Object ELEMENT = new Object();
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        int elements = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        int[] capacities = args.length > 1 ?
+                Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray() :
+                new int[]{16, 64, 256};
+
+        System.out.println(String.format("%d elements, median of %d passes", elements, RUNS));
+        System.out.println(String.format("%-24s %14s %14s", "list", "bytes/element", "ns/element"));
+        measure("MyLinkedList", MyLinkedList::new, elements);
+        for (int capacity : capacities)
+            measure("UnrolledLinkedList(" + capacity + ")", () -> new UnrolledLinkedList<>(capacity), elements);
+    }
+
+    private static void measure(String name, Supplier<List<Object>> factory, int elements) {
+        long before = usedHeap();
+        List<Object> list = factory.get();
+        for (int i = 0; i < elements; i++)
+            list.add(ELEMENT);
+        double bytesPerElement = (double) (usedHeap() - before) / elements;
+
+        long[] nanos = new long[RUNS];
+        for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+            long started = System.nanoTime();
+            int count = 0;
+            for (Object element : list)
+                if (element == ELEMENT)
+                    count++;
+            long elapsed = System.nanoTime() - started;
+            if (count != elements)
+                throw new AssertionError(name + ": iterated " + count + " of " + elements);
+            if (run >= WARMUP_RUNS)
+                nanos[run - WARMUP_RUNS] = elapsed;
+        }
+        Arrays.sort(nanos);
+        System.out.println(String.format("%-24s %14.1f %14.2f", name, bytesPerElement,
+                (double) nanos[RUNS / 2] / elements));
+        sink = list;
+        sink = null;
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
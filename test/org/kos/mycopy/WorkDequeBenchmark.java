@@ -0,0 +1,249 @@
+package org.kos.mycopy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Throughput of {@link WorkDeque} against {@link ConcurrentLinkedDeque} and {@link ArrayDeque} guarded by a lock,
+ * under the access pattern of {@link WorkStealingScheduler}: one producer hands batches of {@link #BATCH} tasks to
+ * the least loaded of the workers' deques with at most {@link #MAX_QUEUED} tasks queued, workers pop their own
+ * deque at the head and steal from the others' tails when it's empty.
+ * <p>
+ * There is no JMH in this tree, so this is a plain harness: every configuration is warmed up before the measured
+ * runs and the median is reported. Each task spins for {@code work} iterations, 0 measures the queues alone.
+ * <p>
+ * Run with {@code java -cp <classes> org.kos.mycopy.WorkDequeBenchmark [tasks [work [threads...]]]}, defaults
+ * 2000000, 0 and 1 2 4 8.
+ */
+public class WorkDequeBenchmark {
+    private static final int BATCH = 64;
+    private static final int MAX_QUEUED = 1024;
+    private static final int WARMUP_RUNS = 3;
+    private static final int RUNS = 5;
+
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int work = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        int[] threadCounts = args.length > 2 ?
+                Arrays.stream(args, 2, args.length).mapToInt(Integer::parseInt).toArray() :
+                new int[]{1, 2, 4, 8};
+
+        System.out.println(String.format("%d tasks in batches of %d, %d iterations of work each, %d CPUs, " +
+                "median of %d runs", tasks, BATCH, work, Runtime.getRuntime().availableProcessors(), RUNS));
+        System.out.println(String.format("%-8s %15s %15s %15s", "workers", "WorkDeque", "ConcurrentLD",
+                "ArrayDeque+lock"));
+        for (int threads : threadCounts) {
+            StringBuilder line = new StringBuilder(String.format("%-8d", threads));
+            for (Kind kind : Kind.values()) {
+                long[] opsPerSecond = new long[RUNS];
+                for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+                    long nanos = run(kind, threads, tasks, work);
+                    if (run >= WARMUP_RUNS)
+                        opsPerSecond[run - WARMUP_RUNS] = tasks * 1_000_000_000L / nanos;
+                }
+                Arrays.sort(opsPerSecond);
+                line.append(String.format(" %13d/s", opsPerSecond[RUNS / 2]));
+            }
+            System.out.println(line);
+        }
+    }
+
+    private enum Kind {
+        WORK_DEQUE, CONCURRENT_LINKED_DEQUE, LOCKED_ARRAY_DEQUE
+    }
+
+    /**
+     * @return nanoseconds until every task ran
+     */
+    private static long run(Kind kind, int threads, int tasks, int work) throws InterruptedException {
+        List<Deque> deques = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++)
+            deques.add(kind == Kind.WORK_DEQUE ? new WorkDequeAdapter() :
+                    kind == Kind.CONCURRENT_LINKED_DEQUE ? new ConcurrentAdapter() : new LockedAdapter());
+        Semaphore space = new Semaphore(MAX_QUEUED);
+        AtomicLong done = new AtomicLong();
+
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            int index = i;
+            workers.add(new Thread(() -> {
+                Deque own = deques.get(index);
+                long local = 0;
+                while (done.get() < tasks) {
+                    Integer task = own.pop();
+                    for (int j = 1; task == null && j < deques.size(); j++)
+                        task = deques.get((index + j) % deques.size()).steal();
+                    if (task == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    space.release();
+                    local += spin(task, work);
+                    done.incrementAndGet();
+                }
+                sink += local;
+            }));
+        }
+
+        long started = System.nanoTime();
+        for (Thread worker : workers)
+            worker.start();
+        for (int first = 0; first < tasks; first += BATCH) {
+            int count = Math.min(BATCH, tasks - first);
+            space.acquireUninterruptibly(count);
+            Deque target = deques.get(0);
+            for (Deque deque : deques)
+                if (deque.size() < target.size())
+                    target = deque;
+            target.addBatch(first, count);
+        }
+        for (Thread worker : workers)
+            worker.join();
+        return System.nanoTime() - started;
+    }
+
+    private static long spin(int seed, int iterations) {
+        long x = seed;
+        for (int i = 0; i < iterations; i++)
+            x ^= (x << 13) ^ (x >>> 7);
+        return x;
+    }
+
+    private interface Deque {
+        /**
+         * Builds a batch of tasks {@code first, first + 1...} the way the scheduler would and adds it.
+         */
+        void addBatch(int first, int count);
+
+        Integer pop();
+
+        Integer steal();
+
+        int size();
+    }
+
+    private static final class WorkDequeAdapter implements Deque {
+        private final WorkDeque<Integer> deque = new WorkDeque<>();
+
+        @Override
+        public void addBatch(int first, int count) {
+            MyLinkedList<Integer> batch = new MyLinkedList<>();
+            for (int i = 0; i < count; i++)
+                batch.add(first + i);
+            deque.addBatch(batch);
+        }
+
+        @Override
+        public Integer pop() {
+            return deque.pop();
+        }
+
+        @Override
+        public Integer steal() {
+            return deque.steal();
+        }
+
+        @Override
+        public int size() {
+            return deque.size();
+        }
+    }
+
+    private static final class ConcurrentAdapter implements Deque {
+        private final ConcurrentLinkedDeque<Integer> deque = new ConcurrentLinkedDeque<>();
+        // ConcurrentLinkedDeque.size() walks the whole deque
+        private final AtomicInteger size = new AtomicInteger();
+
+        @Override
+        public void addBatch(int first, int count) {
+            List<Integer> batch = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                batch.add(first + i);
+            deque.addAll(batch);
+            size.addAndGet(count);
+        }
+
+        @Override
+        public Integer pop() {
+            Integer task = deque.pollFirst();
+            if (task != null)
+                size.decrementAndGet();
+            return task;
+        }
+
+        @Override
+        public Integer steal() {
+            Integer task = deque.pollLast();
+            if (task != null)
+                size.decrementAndGet();
+            return task;
+        }
+
+        @Override
+        public int size() {
+            return size.get();
+        }
+    }
+
+    private static final class LockedAdapter implements Deque {
+        private final ArrayDeque<Integer> deque = new ArrayDeque<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile int size;
+
+        @Override
+        public void addBatch(int first, int count) {
+            List<Integer> batch = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                batch.add(first + i);
+            lock.lock();
+            try {
+                deque.addAll(batch);
+                size = deque.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Integer pop() {
+            if (size == 0)
+                return null;
+            lock.lock();
+            try {
+                Integer task = deque.pollFirst();
+                size = deque.size();
+                return task;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Integer steal() {
+            if (size == 0)
+                return null;
+            lock.lock();
+            try {
+                Integer task = deque.pollLast();
+                size = deque.size();
+                return task;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}